@@ -15,4 +15,8 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
--libraryjars libs
\ No newline at end of file
+-libraryjars libs
+# Root helper started through app_process
+-keep class com.doctoror.surprise.FileCopier {
+    public static void main(java.lang.String[]);
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watches the preserved files with inotify and syncs them once changes settle. A changed
+ * original, i.e. an upgraded su, and a deleted backup are backed up. A deleted original is
+ * restored from the backup. Both runs copy only the files that differ, so the events caused
+ * by the copies themselves end in a check that finds nothing to do.
+ * <p>
+ * The directories are watched rather than the files, since files are usually replaced by a
+ * rename, which a watch on the old file would not see.
+ */
+public final class DriftWatcherService extends Service {
+
+    private static final String TAG = "DriftWatcherService";
+
+    /**
+     * Time without events after which the files are considered settled
+     */
+    private static final long SETTLE_MILLIS = 3000;
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE | FileObserver.ATTRIB;
+
+    /**
+     * Enables or disables the watcher, including starting it on boot. Makes binder calls, so
+     * better not called from the main thread.
+     */
+    public static void setEnabled(@NonNull final Context context, final boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, DriftWatcherReceiver.class), enabled ?
+                        PackageManager.COMPONENT_ENABLED_STATE_ENABLED :
+                        PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+        final Intent intent = new Intent(context, DriftWatcherService.class);
+        if (enabled) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+
+    /**
+     * Makes binder calls, so better not called from the main thread.
+     */
+    public static boolean isEnabled(@NonNull final Context context) {
+        return context.getPackageManager().getComponentEnabledSetting(
+                new ComponentName(context, DriftWatcherReceiver.class))
+                == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+    }
+
+    @NonNull
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Runnable mSettledRunnable = new SettledRunnable();
+
+    @NonNull
+    private final List<FileObserver> mObservers = new ArrayList<>();
+
+    /*
+     * Changes since the last sync, guarded by this
+     */
+    private boolean mOriginalChanged;
+    private boolean mOriginalDeleted;
+    private boolean mBackupChanged;
+    private boolean mBackupDeleted;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        final PreserveManifest manifest = SurpriseService.loadManifest(this);
+        final Map<File, Map<String, Boolean>> namesByDirectory = new HashMap<>();
+        for (final PreserveManifest.Entry entry : manifest.getEntries()) {
+            watch(namesByDirectory, entry.original, true);
+            watch(namesByDirectory, entry.backup, false);
+        }
+        for (final Map.Entry<File, Map<String, Boolean>> entry : namesByDirectory.entrySet()) {
+            final FileObserver observer = new DirectoryObserver(entry.getKey(), entry.getValue());
+            observer.startWatching();
+            mObservers.add(observer);
+        }
+        Log.d(TAG, "Watching " + namesByDirectory);
+    }
+
+    private static void watch(@NonNull final Map<File, Map<String, Boolean>> namesByDirectory,
+                              @NonNull final File file,
+                              final boolean original) {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        Map<String, Boolean> names = namesByDirectory.get(directory);
+        if (names == null) {
+            names = new HashMap<>();
+            namesByDirectory.put(directory, names);
+        }
+        names.put(file.getName(), original);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (final FileObserver observer : mObservers) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+        mHandler.removeCallbacks(mSettledRunnable);
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        // Restarted if killed, the watches are the whole point
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
+    private void onChanged(@NonNull final String name, final int event, final boolean original) {
+        final boolean deleted = (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0;
+        synchronized (this) {
+            if (original) {
+                mOriginalDeleted |= deleted;
+                mOriginalChanged |= !deleted;
+            } else {
+                mBackupDeleted |= deleted;
+                mBackupChanged |= !deleted;
+            }
+        }
+        Log.d(TAG, "Event " + Integer.toHexString(event) + " on " + name);
+        // Restarts the wait on every event of a burst
+        mHandler.removeCallbacks(mSettledRunnable);
+        mHandler.postDelayed(mSettledRunnable, SETTLE_MILLIS);
+    }
+
+    private final class SettledRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            // A replaced file is deleted and written in one burst, so a deletion alone means
+            // the file is gone
+            final boolean originalGone;
+            final boolean backupStale;
+            synchronized (DriftWatcherService.this) {
+                originalGone = mOriginalDeleted && !mOriginalChanged;
+                backupStale = mOriginalChanged || (mBackupDeleted && !mBackupChanged);
+                mOriginalChanged = false;
+                mOriginalDeleted = false;
+                mBackupChanged = false;
+                mBackupDeleted = false;
+            }
+            if (originalGone) {
+                Log.d(TAG, "Original deleted, restoring");
+                SurpriseService.executeSurprise(DriftWatcherService.this, false);
+            } else if (backupStale) {
+                Log.d(TAG, "Original changed or backup deleted, updating backups");
+                SurpriseService.upgradeSurprise(DriftWatcherService.this, false);
+            }
+        }
+    }
+
+    private final class DirectoryObserver extends FileObserver {
+
+        /**
+         * Watched names, true for originals
+         */
+        @NonNull
+        private final Map<String, Boolean> mNames;
+
+        DirectoryObserver(@NonNull final File directory,
+                          @NonNull final Map<String, Boolean> names) {
+            super(directory.getPath(), EVENTS);
+            mNames = names;
+        }
+
+        @Override
+        public void onEvent(final int event, final String path) {
+            // Called on the observer thread
+            final Boolean original = path != null ? mNames.get(path) : null;
+            if (original != null) {
+                onChanged(path, event, original);
+            }
+        }
+    }
+}
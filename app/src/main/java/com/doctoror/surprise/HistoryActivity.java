@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.app.Fragment;
+import android.app.ListActivity;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.text.format.Formatter;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import java.io.File;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Lists the versions of the preserved files stored before they were replaced. A tapped
+ * version is restored in place of the original after confirmation.
+ */
+public final class HistoryActivity extends ListActivity {
+
+    private static final String TAG_DIALOG = ".tags.DIALOG";
+
+    /**
+     * Length of the hash prefix shown
+     */
+    private static final int HASH_LENGTH = 8;
+
+    private LoadTask mLoadTask;
+
+    private List<HistoryStore.Version> mVersions;
+    private List<String> mTargets;
+
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+        mLoadTask = new LoadTask();
+        mLoadTask.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mLoadTask.cancel(false);
+    }
+
+    @Override
+    protected void onListItemClick(final ListView l, final View v, final int position,
+                                   final long id) {
+        final String target = mTargets.get(position);
+        if (target != null) {
+            RestoreDialogFragment.show(this, mVersions.get(position).hash, target);
+        }
+    }
+
+    private void onVersionsLoaded(@NonNull final List<HistoryStore.Version> versions,
+                                  @NonNull final List<String> targets) {
+        mVersions = versions;
+        mTargets = targets;
+        final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                DateFormat.MEDIUM);
+        final List<String> items = new ArrayList<>(versions.size());
+        for (final HistoryStore.Version version : versions) {
+            items.add(dateFormat.format(new Date(version.addedMillis)) + ' '
+                    + version.hash.substring(0, HASH_LENGTH) + "\n  " + version.path + ", "
+                    + Formatter.formatShortFileSize(this, version.size));
+        }
+        setListAdapter(new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, items));
+    }
+
+    private final class LoadTask extends AsyncTask<Void, Void, List<HistoryStore.Version>> {
+
+        private final List<String> mLoadedTargets = new ArrayList<>();
+
+        @Override
+        protected List<HistoryStore.Version> doInBackground(final Void... params) {
+            final List<HistoryStore.Version> versions = SurpriseService.getHistoryStore(
+                    getApplicationContext()).getVersions();
+            final PreserveManifest manifest = SurpriseService.loadManifest(
+                    getApplicationContext());
+            for (final HistoryStore.Version version : versions) {
+                mLoadedTargets.add(target(manifest, new File(version.path)));
+            }
+            return versions;
+        }
+
+        @Override
+        protected void onPostExecute(final List<HistoryStore.Version> versions) {
+            if (!isCancelled()) {
+                onVersionsLoaded(versions, mLoadedTargets);
+            }
+        }
+    }
+
+    /**
+     * @return path of the original the version is restored to or null if the file is no
+     * longer in the manifest
+     */
+    private static String target(@NonNull final PreserveManifest manifest,
+                                 @NonNull final File file) {
+        for (final PreserveManifest.Entry entry : manifest.getEntries()) {
+            if (entry.original.equals(file) || entry.backup.equals(file)) {
+                return entry.original.getPath();
+            }
+        }
+        return null;
+    }
+
+    public static final class RestoreDialogFragment extends DialogFragment {
+
+        private static final String EXTRA_HASH = ".extras.HASH";
+        private static final String EXTRA_TARGET = ".extras.TARGET";
+
+        static void show(@NonNull final ListActivity context,
+                         @NonNull final String hash,
+                         @NonNull final String target) {
+            final Bundle args = new Bundle();
+            args.putString(EXTRA_HASH, hash);
+            args.putString(EXTRA_TARGET, target);
+
+            final RestoreDialogFragment f = (RestoreDialogFragment) Fragment.instantiate(context,
+                    RestoreDialogFragment.class.getName(), args);
+            f.show(context.getFragmentManager(), TAG_DIALOG);
+        }
+
+        @Override
+        public Dialog onCreateDialog(final Bundle savedInstanceState) {
+            final Bundle args = getArguments();
+            return new AlertDialog.Builder(getActivity()).setTitle(R.string.Restore_version)
+                    .setMessage(getString(R.string.Restore_version_message,
+                            args.getString(EXTRA_TARGET)))
+                    .setPositiveButton(R.string.Restore, new DialogInterface.OnClickListener() {
+
+                        @Override
+                        public void onClick(final DialogInterface dialog, final int which) {
+                            SurpriseService.restoreVersion(getActivity(),
+                                    args.getString(EXTRA_HASH));
+                        }
+                    })
+                    .setNegativeButton(android.R.string.cancel, null).create();
+        }
+    }
+}
@@ -20,8 +20,12 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.util.SparseArray;
 
-
+/**
+ * Posts notifications from any thread. Updates of the same notification made before the main
+ * thread gets to them are merged, so only the latest one is posted.
+ */
 public final class NotificationManagerHandler {
 
     private static NotificationManagerHandler sInstance;
@@ -39,36 +43,57 @@ public final class NotificationManagerHandler {
     @NonNull
     private final Handler mHandler = new Handler(Looper.getMainLooper());
 
+    /**
+     * Notifications to post by id, null values for cancelling. Guarded by itself.
+     */
+    @NonNull
+    private final SparseArray<Notification> mPending = new SparseArray<>();
+
+    @NonNull
+    private final Runnable mFlushRunnable = new FlushRunnable();
+
     private NotificationManagerHandler(@NonNull final Context context) {
         mNotificationManager = (NotificationManager)
                 context.getSystemService(Context.NOTIFICATION_SERVICE);
     }
 
+    /**
+     * Shows the notification or updates the one shown with the same id
+     */
     public void showNotification(final int id, @NonNull final Notification notification) {
-        mHandler.post(new ShowNotificationRunnable(mNotificationManager, id, notification));
+        enqueue(id, notification);
     }
 
-    private final class ShowNotificationRunnable implements Runnable {
-
-        @NonNull
-        private final NotificationManager mNotificationManager;
-
-        @NonNull
-        private final Notification mNotification;
-
-        private final int mId;
+    public void cancelNotification(final int id) {
+        enqueue(id, null);
+    }
 
-        ShowNotificationRunnable(@NonNull final NotificationManager notificationManager,
-                                 final int id,
-                                 @NonNull final Notification notification) {
-            mNotificationManager = notificationManager;
-            mId = id;
-            mNotification = notification;
+    private void enqueue(final int id, final Notification notification) {
+        synchronized (mPending) {
+            if (mPending.size() == 0) {
+                mHandler.post(mFlushRunnable);
+            }
+            mPending.put(id, notification);
         }
+    }
+
+    private final class FlushRunnable implements Runnable {
 
         @Override
         public void run() {
-            mNotificationManager.notify(mId, mNotification);
+            final SparseArray<Notification> pending;
+            synchronized (mPending) {
+                pending = mPending.clone();
+                mPending.clear();
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                final Notification notification = pending.valueAt(i);
+                if (notification != null) {
+                    mNotificationManager.notify(pending.keyAt(i), notification);
+                } else {
+                    mNotificationManager.cancel(pending.keyAt(i));
+                }
+            }
         }
     }
 }
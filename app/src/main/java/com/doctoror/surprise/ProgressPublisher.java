@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.LocalBroadcastManager;
+
+/**
+ * Publishes progress of the running job as {@link #ACTION_PROGRESS} broadcasts and, for long
+ * runs, as an ongoing notification.
+ * <p>
+ * Updates may come at any rate from any thread. They only change the current state, which is
+ * published from the main thread by a single {@link Runnable} at most once per
+ * {@link #PUBLISH_INTERVAL_MILLIS}.
+ */
+final class ProgressPublisher {
+
+    static final String ACTION_PROGRESS = ".action.PROGRESS";
+
+    /**
+     * The job action, {@link SurpriseService#ACTION_SURPRISE},
+     * {@link SurpriseService#ACTION_UPGRADE_SURPRISE} or
+     * {@link SurpriseService#ACTION_RESTORE_VERSION}
+     */
+    static final String EXTRA_ACTION = ".extra.ACTION";
+
+    /**
+     * A {@link FlightRecorder} phase or {@link #PHASE_WAITING}
+     */
+    static final String EXTRA_PHASE = ".extra.PHASE";
+
+    static final String EXTRA_ATTEMPT = ".extra.ATTEMPT";
+    static final String EXTRA_BYTES = ".extra.BYTES";
+
+    /**
+     * Bytes to copy, 0 while not known
+     */
+    static final String EXTRA_TOTAL_BYTES = ".extra.TOTAL_BYTES";
+
+    /**
+     * Phase before the first attempt starts
+     */
+    static final int PHASE_WAITING = 0;
+
+    private static final long PUBLISH_INTERVAL_MILLIS = 250;
+
+    /**
+     * Runs shorter than this finish without a notification
+     */
+    private static final long NOTIFICATION_DELAY_MILLIS = 2000;
+
+    private static final int NOTIFICATION_ID = 2;
+
+    /**
+     * Maximum of {@link #progress(long, long)}
+     */
+    static final int PROGRESS_MAX = 1000;
+
+    @NonNull
+    private final Context mContext;
+
+    @NonNull
+    private final LocalBroadcastManager mLocalBroadcastManager;
+
+    @NonNull
+    private final NotificationManagerHandler mNotificationManagerHandler;
+
+    @NonNull
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @NonNull
+    private final Runnable mPublishRunnable = new PublishRunnable();
+
+    /*
+     * Current state, guarded by this
+     */
+    private String mAction;
+    private int mPhase;
+    private int mAttempt;
+    private long mBytes;
+    private long mTotalBytes;
+    private long mStartTime;
+    private long mLastPublishTime;
+    private boolean mScheduled;
+    private boolean mNotified;
+
+    ProgressPublisher(@NonNull final Context context) {
+        mContext = context.getApplicationContext();
+        mLocalBroadcastManager = LocalBroadcastManager.getInstance(mContext);
+        mNotificationManagerHandler = NotificationManagerHandler.getInstance(mContext);
+    }
+
+    /**
+     * Starts publishing progress of a job
+     */
+    synchronized void begin(@NonNull final String action) {
+        mAction = action;
+        mPhase = PHASE_WAITING;
+        mAttempt = 0;
+        mBytes = 0;
+        mTotalBytes = 0;
+        mStartTime = SystemClock.uptimeMillis();
+        mNotified = false;
+        schedule();
+        // Makes the notification appear for runs that wait without updates
+        mHandler.postAtTime(mPublishRunnable, mStartTime + NOTIFICATION_DELAY_MILLIS);
+    }
+
+    synchronized void setPhase(final int phase, final int attempt) {
+        mPhase = phase;
+        mAttempt = attempt;
+        schedule();
+    }
+
+    /**
+     * Sets the bytes to copy and resets the bytes copied
+     */
+    synchronized void setTotalBytes(final long totalBytes) {
+        mTotalBytes = totalBytes;
+        mBytes = 0;
+        schedule();
+    }
+
+    synchronized void addBytes(final long bytes) {
+        mBytes += bytes;
+        schedule();
+    }
+
+    /**
+     * Stops publishing and removes the notification. Call before broadcasting the result, so
+     * that no progress is delivered after it.
+     */
+    synchronized void end() {
+        mAction = null;
+        mScheduled = false;
+        mHandler.removeCallbacks(mPublishRunnable);
+        if (mNotified) {
+            mNotificationManagerHandler.cancelNotification(NOTIFICATION_ID);
+            mNotified = false;
+        }
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postAtTime(mPublishRunnable, mLastPublishTime + PUBLISH_INTERVAL_MILLIS);
+        }
+    }
+
+    private final class PublishRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            // Publishes under the lock, so that nothing is published after end()
+            synchronized (ProgressPublisher.this) {
+                mScheduled = false;
+                if (mAction == null) {
+                    return;
+                }
+                final long now = SystemClock.uptimeMillis();
+                mLastPublishTime = now;
+
+                final Intent intent = new Intent(ACTION_PROGRESS);
+                intent.putExtra(EXTRA_ACTION, mAction);
+                intent.putExtra(EXTRA_PHASE, mPhase);
+                intent.putExtra(EXTRA_ATTEMPT, mAttempt);
+                intent.putExtra(EXTRA_BYTES, mBytes);
+                intent.putExtra(EXTRA_TOTAL_BYTES, mTotalBytes);
+                mLocalBroadcastManager.sendBroadcast(intent);
+
+                if (now - mStartTime >= NOTIFICATION_DELAY_MILLIS) {
+                    mNotified = true;
+                    mNotificationManagerHandler.showNotification(NOTIFICATION_ID,
+                            new NotificationCompat.Builder(mContext)
+                                    .setOngoing(true)
+                                    .setOnlyAlertOnce(true)
+                                    .setContentIntent(PendingIntent.getActivity(mContext, 2,
+                                            new Intent(mContext, SurpriseActivity.class),
+                                            PendingIntent.FLAG_UPDATE_CURRENT))
+                                    .setSmallIcon(R.drawable.ic_stat)
+                                    .setContentTitle(mContext.getText(
+                                            SurpriseService.ACTION_SURPRISE.equals(mAction)
+                                                    ? R.string.Surprise : R.string.su_surprise))
+                                    .setContentText(describe(mContext, mPhase, mAttempt))
+                                    .setProgress(PROGRESS_MAX, progress(mBytes, mTotalBytes),
+                                            mTotalBytes == 0)
+                                    .build());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return progress scaled to {@link #PROGRESS_MAX}
+     */
+    static int progress(final long bytes, final long totalBytes) {
+        return totalBytes == 0
+                ? 0 : (int) (Math.min(bytes, totalBytes) * PROGRESS_MAX / totalBytes);
+    }
+
+    /**
+     * @return text of the phase for the user
+     */
+    @NonNull
+    static CharSequence describe(@NonNull final Context context,
+                                 final int phase,
+                                 final int attempt) {
+        final int text;
+        switch (phase) {
+            case FlightRecorder.PHASE_BOOT_WAIT:
+                text = R.string.Progress_boot_wait;
+                break;
+
+            case FlightRecorder.PHASE_VERIFY:
+            case FlightRecorder.PHASE_CHECK_COPY:
+                text = R.string.Progress_verifying;
+                break;
+
+            case FlightRecorder.PHASE_REMOUNT_RW:
+            case FlightRecorder.PHASE_REMOUNT_RO:
+                text = R.string.Progress_remounting;
+                break;
+
+            case FlightRecorder.PHASE_COPY:
+                text = R.string.Progress_copying;
+                break;
+
+            default:
+                text = R.string.Progress_waiting;
+                break;
+        }
+        return attempt > 1
+                ? context.getString(R.string.Progress_attempt, context.getText(text), attempt)
+                : context.getText(text);
+    }
+}
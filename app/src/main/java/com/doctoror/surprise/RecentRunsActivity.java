@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.app.ListActivity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.widget.ArrayAdapter;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Shows the phases of the most recent runs decoded from the flight recorder
+ */
+public final class RecentRunsActivity extends ListActivity {
+
+    private static final String TAG = "RecentRunsActivity";
+
+    private static final int MAX_RUNS = 20;
+
+    private LoadTask mLoadTask;
+
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_recent_runs);
+        mLoadTask = new LoadTask(SurpriseService.getFlightRecorderFile(this),
+                getString(R.string.Run_interrupted));
+        mLoadTask.execute();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mLoadTask.cancel(false);
+    }
+
+    private void onRunsLoaded(@NonNull final List<String> runs) {
+        setListAdapter(new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, runs));
+    }
+
+    private final class LoadTask extends AsyncTask<Void, Void, List<String>> {
+
+        @NonNull
+        private final File mFile;
+
+        @NonNull
+        private final String mInterrupted;
+
+        LoadTask(@NonNull final File file, @NonNull final String interrupted) {
+            mFile = file;
+            mInterrupted = interrupted;
+        }
+
+        @Override
+        protected List<String> doInBackground(final Void... params) {
+            final List<FlightRecorder.Record> records;
+            try {
+                records = FlightRecorder.read(mFile, MAX_RUNS);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read " + mFile, e);
+                return Collections.emptyList();
+            }
+            return format(records, mInterrupted);
+        }
+
+        @Override
+        protected void onPostExecute(final List<String> runs) {
+            if (!isCancelled()) {
+                onRunsLoaded(runs);
+            }
+        }
+    }
+
+    /**
+     * @return one entry per run, newest first
+     */
+    @NonNull
+    private static List<String> format(@NonNull final List<FlightRecorder.Record> records,
+                                       @NonNull final String interrupted) {
+        final DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                DateFormat.MEDIUM);
+        final List<String> runs = new ArrayList<>();
+        final StringBuilder phases = new StringBuilder();
+        FlightRecorder.Record first = null;
+        for (int i = 0; i < records.size(); i++) {
+            final FlightRecorder.Record record = records.get(i);
+            if (first == null) {
+                first = record;
+            }
+            if (!record.isRun()) {
+                phases.append("\n  ").append(record);
+            }
+            final boolean lastOfRun = i == records.size() - 1
+                    || records.get(i + 1).run != record.run;
+            if (lastOfRun) {
+                final StringBuilder run = new StringBuilder(128);
+                run.append(dateFormat.format(new Date(first.timeMillis))).append(' ');
+                if (record.isRun()) {
+                    run.append(record);
+                } else {
+                    // No summary, the process died during the run
+                    run.append(interrupted);
+                }
+                runs.add(run.append(phases).toString());
+                phases.setLength(0);
+                first = null;
+            }
+        }
+        Collections.reverse(runs);
+        return runs;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Metrics of {@link SurpriseService}. Kept for the life of the process, since the service
+ * stops whenever its queue is drained, and printed by its dump:
+ * <pre>
+ * adb shell dumpsys activity service com.doctoror.surprise
+ * </pre>
+ */
+final class ServiceMetrics {
+
+    static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    /*
+     * Job durations by action
+     */
+    static final MetricsRegistry.Histogram JOB_SURPRISE = REGISTRY.timer("job.surprise");
+    static final MetricsRegistry.Histogram JOB_UPGRADE = REGISTRY.timer("job.upgrade");
+    static final MetricsRegistry.Histogram JOB_RESTORE = REGISTRY.timer("job.restore");
+
+    static final MetricsRegistry.Counter JOBS_FAILED = REGISTRY.counter("jobs.failed");
+
+    /**
+     * Attempts of a surprise run that got to copy at all
+     */
+    static final MetricsRegistry.Histogram SURPRISE_ATTEMPTS
+            = REGISTRY.histogram("surprise.attempts");
+
+    static final MetricsRegistry.Counter SURPRISE_RETRIES = REGISTRY.counter("surprise.retries");
+
+    static final MetricsRegistry.Histogram BOOT_WAIT = REGISTRY.timer("boot.wait");
+
+    /**
+     * Fingerprint comparison of a file before copying
+     */
+    static final MetricsRegistry.Histogram VERIFY = REGISTRY.timer("verify");
+
+    static final MetricsRegistry.Histogram SHELL_SPAWN = REGISTRY.timer("shell.spawn");
+
+    /**
+     * Run of the root helper, including the VM start
+     */
+    static final MetricsRegistry.Histogram HELPER_RUN = REGISTRY.timer("helper.run");
+
+    static final MetricsRegistry.Histogram HELPER_OUTPUT_BYTES
+            = REGISTRY.histogram("helper.output_bytes");
+
+    static final MetricsRegistry.Histogram COPY_DIRECT = REGISTRY.timer("copy.direct");
+    static final MetricsRegistry.Histogram COPY_CHECK = REGISTRY.timer("copy.check");
+
+    static final MetricsRegistry.Counter COPIED_BYTES = REGISTRY.counter("copy.bytes");
+
+    private ServiceMetrics() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the duration histogram of jobs with the action
+     */
+    @NonNull
+    static MetricsRegistry.Histogram jobTimer(@NonNull final String action) {
+        switch (action) {
+            case SurpriseService.ACTION_SURPRISE:
+                return JOB_SURPRISE;
+
+            case SurpriseService.ACTION_UPGRADE_SURPRISE:
+                return JOB_UPGRADE;
+
+            case SurpriseService.ACTION_RESTORE_VERSION:
+                return JOB_RESTORE;
+
+            default:
+                throw new IllegalArgumentException("Unhandled action: " + action);
+        }
+    }
+}
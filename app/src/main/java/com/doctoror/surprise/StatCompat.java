@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+
+/**
+ * File metadata that {@link File} does not expose. Available since Lollipop.
+ */
+final class StatCompat {
+
+    /**
+     * Mode value meaning "not known on this platform"
+     */
+    static final int MODE_UNKNOWN = -1;
+
+    private StatCompat() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return inode of the file or {@link FingerprintCache#INODE_UNKNOWN}
+     */
+    static long inode(@NonNull final File file) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final StructStat stat = stat(file);
+            if (stat != null) {
+                return stat.st_ino;
+            }
+        }
+        return FingerprintCache.INODE_UNKNOWN;
+    }
+
+    /**
+     * @return permission bits including setuid and setgid, or {@link #MODE_UNKNOWN}
+     */
+    static int mode(@NonNull final File file) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final StructStat stat = stat(file);
+            if (stat != null) {
+                return stat.st_mode & 07777;
+            }
+        }
+        return MODE_UNKNOWN;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static StructStat stat(@NonNull final File file) {
+        try {
+            return Os.stat(file.getPath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+}
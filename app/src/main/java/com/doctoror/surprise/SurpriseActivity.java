@@ -25,27 +25,63 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.content.LocalBroadcastManager;
+import android.text.format.DateUtils;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.CompoundButton;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 import android.widget.ViewAnimator;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 public final class SurpriseActivity extends Activity implements View.OnClickListener,
         CompoundButton.OnCheckedChangeListener {
 
     private static final int ANIMATOR_CHILD_CONTENT = 0;
     private static final int ANIMATOR_CHILD_PROGRESS = 1;
 
+    private static final String TAG = "SurpriseActivity";
+
     private static final String TAG_DIALOG = ".tags.DIALOG";
 
+    /**
+     * Runs component state changes in order, off the main thread
+     */
+    private static final Executor sComponentExecutor = Executors.newSingleThreadExecutor();
+
     private PackageManager mPackageManager;
     private ComponentName mReceiverComponent;
 
+    private CompoundButton mSurpriseToggle;
+    private CompoundButton mWatchToggle;
+    private TextView mSyncStatusText;
+    private LoadTask mLoadTask;
+
+    /*
+     * Startup timing, in SystemClock.uptimeMillis() base
+     */
+    private long mCreateTime;
+    private long mFirstFrameTime;
+    private boolean mInteractive;
+
     private ViewAnimator mAnimatorSurprise;
     private ViewAnimator mAnimatorUpgrade;
 
+    private ProgressBar mProgressSurprise;
+    private ProgressBar mProgressUpgrade;
+    private TextView mProgressTextSurprise;
+    private TextView mProgressTextUpgrade;
+
     private ServiceReceiver mServiceReceiver = new ServiceReceiver();
     private LocalBroadcastManager mLocalBroadcastManager;
 
@@ -53,6 +89,7 @@ public final class SurpriseActivity extends Activity implements View.OnClickList
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
+        mCreateTime = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         mFragmentTransactionsAllowed = true;
         setContentView(R.layout.activity_surprise);
@@ -62,13 +99,19 @@ public final class SurpriseActivity extends Activity implements View.OnClickList
 
         mAnimatorSurprise = (ViewAnimator) findViewById(R.id.animator_surprise);
         mAnimatorUpgrade = (ViewAnimator) findViewById(R.id.animator_upgrade);
+        mProgressSurprise = (ProgressBar) findViewById(R.id.progress_surprise);
+        mProgressUpgrade = (ProgressBar) findViewById(R.id.progress_upgrade);
+        mProgressTextSurprise = (TextView) findViewById(R.id.progress_text_surprise);
+        mProgressTextUpgrade = (TextView) findViewById(R.id.progress_text_upgrade);
 
         mPackageManager = getPackageManager();
         mReceiverComponent = new ComponentName(this, SurpriseReceiver.class);
-        final CompoundButton surprise = (CompoundButton) findViewById(R.id.btn_surprise);
-        surprise.setChecked(mPackageManager.getComponentEnabledSetting(mReceiverComponent)
-                == PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
-        surprise.setOnCheckedChangeListener(this);
+        // Disabled in the layout until the state is loaded
+        mSurpriseToggle = (CompoundButton) findViewById(R.id.btn_surprise);
+        mWatchToggle = (CompoundButton) findViewById(R.id.check_watch);
+        mSyncStatusText = (TextView) findViewById(R.id.text_sync_status);
+        load();
+        trackFirstFrame();
 
         findViewById(R.id.btn_surprise_to_su).setOnClickListener(this);
         findViewById(R.id.info_surprise).setOnClickListener(this);
@@ -85,6 +128,82 @@ public final class SurpriseActivity extends Activity implements View.OnClickList
     protected void onDestroy() {
         super.onDestroy();
         mLocalBroadcastManager.unregisterReceiver(mServiceReceiver);
+        mLoadTask.cancel(false);
+    }
+
+    /**
+     * Loads the receiver state and the sync status in background
+     */
+    private void load() {
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadTask();
+        // Not behind other tasks on the serial executor
+        mLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void trackFirstFrame() {
+        final ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+
+            @Override
+            public boolean onPreDraw() {
+                final ViewTreeObserver current = getWindow().getDecorView().getViewTreeObserver();
+                if (current.isAlive()) {
+                    current.removeOnPreDrawListener(this);
+                }
+                mFirstFrameTime = SystemClock.uptimeMillis();
+                Log.d(TAG, "Time to first frame: " + (mFirstFrameTime - mCreateTime) + " ms");
+                logTimeToInteractive();
+                return true;
+            }
+        });
+    }
+
+    private void onStateLoaded(final boolean enabled,
+                               final boolean watching,
+                               @NonNull final SyncStatus status) {
+        // Not a user change, so no listener while setting
+        mSurpriseToggle.setOnCheckedChangeListener(null);
+        mSurpriseToggle.setChecked(enabled);
+        mSurpriseToggle.setOnCheckedChangeListener(this);
+        mSurpriseToggle.setEnabled(true);
+        mWatchToggle.setOnCheckedChangeListener(null);
+        mWatchToggle.setChecked(watching);
+        mWatchToggle.setOnCheckedChangeListener(this);
+        mWatchToggle.setEnabled(true);
+        mSyncStatusText.setText(formatSyncStatus(status));
+        if (!mInteractive) {
+            mInteractive = true;
+            logTimeToInteractive();
+        }
+    }
+
+    /**
+     * Logs once both the first frame is drawn and the state is loaded
+     */
+    private void logTimeToInteractive() {
+        if (mInteractive && mFirstFrameTime != 0) {
+            Log.d(TAG, "Time to interactive: "
+                    + (SystemClock.uptimeMillis() - mCreateTime) + " ms");
+        }
+    }
+
+    @NonNull
+    private CharSequence formatSyncStatus(@NonNull final SyncStatus status) {
+        final CharSequence time = status.timeMillis == 0 ? null
+                : DateUtils.getRelativeTimeSpanString(status.timeMillis);
+        switch (status.state) {
+            case SyncStatus.STATE_IN_SYNC:
+                return getString(R.string.Sync_status_in_sync, time);
+
+            case SyncStatus.STATE_OUT_OF_SYNC:
+                return getString(R.string.Sync_status_out_of_sync, status.outOfSync, time);
+
+            default:
+                return getText(R.string.Sync_status_unknown);
+        }
     }
 
     @Override
@@ -93,24 +212,67 @@ public final class SurpriseActivity extends Activity implements View.OnClickList
         mFragmentTransactionsAllowed = false;
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        getMenuInflater().inflate(R.menu.activity_surprise, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_recent_runs:
+                startActivity(new Intent(this, RecentRunsActivity.class));
+                return true;
+
+            case R.id.action_history:
+                startActivity(new Intent(this, HistoryActivity.class));
+                return true;
+
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
     @Override
     public void onCheckedChanged(final CompoundButton buttonView, final boolean isChecked) {
-        mPackageManager.setComponentEnabledSetting(mReceiverComponent, isChecked ?
-                        PackageManager.COMPONENT_ENABLED_STATE_ENABLED :
-                        PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
-                        PackageManager.DONT_KILL_APP);
+        if (buttonView == mWatchToggle) {
+            final Context context = getApplicationContext();
+            sComponentExecutor.execute(new Runnable() {
 
+                @Override
+                public void run() {
+                    DriftWatcherService.setEnabled(context, isChecked);
+                }
+            });
+            return;
+        }
         if (isChecked) {
-            mAnimatorSurprise.setDisplayedChild(ANIMATOR_CHILD_PROGRESS);
-            SurpriseService.executeSurprise(SurpriseActivity.this, true);
+            showProgress(mAnimatorSurprise, mProgressSurprise, mProgressTextSurprise);
         }
+        final PackageManager packageManager = mPackageManager;
+        final ComponentName receiverComponent = mReceiverComponent;
+        final Context context = getApplicationContext();
+        sComponentExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                packageManager.setComponentEnabledSetting(receiverComponent, isChecked ?
+                                PackageManager.COMPONENT_ENABLED_STATE_ENABLED :
+                                PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                        PackageManager.DONT_KILL_APP);
+                if (isChecked) {
+                    SurpriseService.executeSurprise(context, true);
+                }
+            }
+        });
     }
 
     @Override
     public void onClick(View v) {
         switch (v.getId()) {
             case R.id.btn_surprise_to_su:
-                mAnimatorUpgrade.setDisplayedChild(ANIMATOR_CHILD_PROGRESS);
+                showProgress(mAnimatorUpgrade, mProgressUpgrade, mProgressTextUpgrade);
                 SurpriseService.upgradeSurprise(SurpriseActivity.this);
                 break;
 
@@ -133,6 +295,38 @@ public final class SurpriseActivity extends Activity implements View.OnClickList
         }
     }
 
+    private static void showProgress(@NonNull final ViewAnimator animator,
+                                     @NonNull final ProgressBar progressBar,
+                                     @NonNull final TextView progressText) {
+        if (animator.getDisplayedChild() != ANIMATOR_CHILD_PROGRESS) {
+            progressBar.setIndeterminate(true);
+            progressText.setText(null);
+            animator.setDisplayedChild(ANIMATOR_CHILD_PROGRESS);
+        }
+    }
+
+    private void onProgress(@NonNull final Intent intent) {
+        // Restores replace su like surprise does
+        final boolean surprise = !SurpriseService.ACTION_UPGRADE_SURPRISE.equals(
+                intent.getStringExtra(ProgressPublisher.EXTRA_ACTION));
+        final ProgressBar progressBar = surprise ? mProgressSurprise : mProgressUpgrade;
+        final TextView progressText = surprise ? mProgressTextSurprise : mProgressTextUpgrade;
+        // Also shows runs started elsewhere, i.e. on boot
+        showProgress(surprise ? mAnimatorSurprise : mAnimatorUpgrade, progressBar,
+                progressText);
+
+        final long totalBytes = intent.getLongExtra(ProgressPublisher.EXTRA_TOTAL_BYTES, 0);
+        if (totalBytes != 0) {
+            progressBar.setIndeterminate(false);
+            progressBar.setMax(ProgressPublisher.PROGRESS_MAX);
+            progressBar.setProgress(ProgressPublisher.progress(
+                    intent.getLongExtra(ProgressPublisher.EXTRA_BYTES, 0), totalBytes));
+        }
+        progressText.setText(ProgressPublisher.describe(this,
+                intent.getIntExtra(ProgressPublisher.EXTRA_PHASE, ProgressPublisher.PHASE_WAITING),
+                intent.getIntExtra(ProgressPublisher.EXTRA_ATTEMPT, 0)));
+    }
+
     private final class ServiceReceiver extends BroadcastReceiver {
 
         final IntentFilter mIntentFilter = new IntentFilter();
@@ -140,22 +334,61 @@ public final class SurpriseActivity extends Activity implements View.OnClickList
         ServiceReceiver() {
             mIntentFilter.addAction(SurpriseService.ACTION_SURPRISE_FINISHED);
             mIntentFilter.addAction(SurpriseService.ACTION_UPGRADE_FINISHED);
+            mIntentFilter.addAction(SurpriseService.ACTION_RESTORE_FINISHED);
+            mIntentFilter.addAction(ProgressPublisher.ACTION_PROGRESS);
         }
 
         @Override
         public void onReceive(Context context, Intent intent) {
             switch (intent.getAction()) {
                 case SurpriseService.ACTION_SURPRISE_FINISHED:
+                case SurpriseService.ACTION_RESTORE_FINISHED:
                     if (mAnimatorSurprise != null) {
                         mAnimatorSurprise.setDisplayedChild(ANIMATOR_CHILD_CONTENT);
+                        load();
                     }
                     break;
 
                 case SurpriseService.ACTION_UPGRADE_FINISHED:
                     if (mAnimatorUpgrade != null) {
                         mAnimatorUpgrade.setDisplayedChild(ANIMATOR_CHILD_CONTENT);
+                        load();
                     }
                     break;
+
+                case ProgressPublisher.ACTION_PROGRESS:
+                    if (mAnimatorSurprise != null) {
+                        onProgress(intent);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private final class LoadTask extends AsyncTask<Void, Void, SyncStatus> {
+
+        private boolean mEnabled;
+        private boolean mWatching;
+
+        @Override
+        protected SyncStatus doInBackground(final Void... params) {
+            final long start = SystemClock.uptimeMillis();
+            mEnabled = mPackageManager.getComponentEnabledSetting(mReceiverComponent)
+                    == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+            mWatching = DriftWatcherService.isEnabled(getApplicationContext());
+            if (mWatching) {
+                // In case it was not restarted, i.e. after an update
+                startService(new Intent(getApplicationContext(), DriftWatcherService.class));
+            }
+            final SyncStatus status = SyncStatus.load(getApplicationContext());
+            Log.d(TAG, "State loaded in " + (SystemClock.uptimeMillis() - start) + " ms");
+            return status;
+        }
+
+        @Override
+        protected void onPostExecute(final SyncStatus status) {
+            if (!isCancelled()) {
+                onStateLoaded(mEnabled, mWatching, status);
             }
         }
     }
@@ -22,6 +22,6 @@ public final class SurpriseReceiver extends WakefulBroadcastReceiver {
 
     @Override
     public void onReceive(final Context context, final Intent intent) {
-        SurpriseService.executeSurprise(context, false);
+        startWakefulService(context, SurpriseService.newSurpriseIntent(context, false));
     }
 }
@@ -14,64 +14,259 @@
  */
 package com.doctoror.surprise;
 
-import android.app.IntentService;
 import android.app.Notification;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.os.PowerManager;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.LocalBroadcastManager;
+import android.support.v4.content.WakefulBroadcastReceiver;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.InputStreamReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-public final class SurpriseService extends IntentService {
+public final class SurpriseService extends Service
+        implements JobExecutor.Callbacks<SurpriseService.Job, CommandResult> {
 
     private static final String TAG = "SurpriseService";
 
     public static final String ACTION_SURPRISE_FINISHED = ".action.SURPRISE_FINISHED";
     public static final String ACTION_UPGRADE_FINISHED = ".action.UPGRADE_FINISHED";
+    public static final String ACTION_RESTORE_FINISHED = ".action.RESTORE_FINISHED";
 
-    private static final String ACTION_SURPRISE = ".action.SURPRISE";
-    private static final String ACTION_UPGRADE_SURPRISE = ".action.UPGRADE_SURPRISE";
+    static final String ACTION_SURPRISE = ".action.SURPRISE";
+    static final String ACTION_UPGRADE_SURPRISE = ".action.UPGRADE_SURPRISE";
+    static final String ACTION_RESTORE_VERSION = ".action.RESTORE_VERSION";
     private static final String EXTRA_FROM_USER = ".extra.FROM_USER";
+    private static final String EXTRA_HASH = ".extra.HASH";
 
     private static final String SU_BINARY_PATH = "/system/xbin/su";
     private static final String SURPRISE_BINARY_PATH = "/system/xbin/surprise";
 
+    private static final int BINARY_MODE = 06755;
+
     private static final String COMMAND_SU = "su";
     private static final String COMMAND_SURPRISE = SURPRISE_BINARY_PATH;
 
+    /**
+     * Binaries of the root shells. A shell session may be running them, so they are replaced
+     * even by a delta copy, a running executable cannot be opened for writing.
+     */
+    private static final List<File> SHELL_BINARIES = Arrays.asList(
+            new File(SURPRISE_BINARY_PATH), new File(SU_BINARY_PATH));
+
+    /**
+     * Time limit for a command batch. Covers the su spawn, which may wait for the superuser
+     * grant prompt.
+     */
+    private static final long BATCH_TIMEOUT_MILLIS = 30000L;
+
+    private static final String SYSTEM_MOUNT_POINT = "/system";
+
+    private static final String COMMAND_REMOUNT_RO = "mount -o remount,ro " + SYSTEM_MOUNT_POINT;
+
+    /*
+     * Retry policy of non-user surprise runs
+     */
+    private static final int RETRY_MAX_ATTEMPTS = 8;
+    private static final long RETRY_INITIAL_DELAY_MILLIS = 200L;
+    private static final long RETRY_MAX_DELAY_MILLIS = 5000L;
+    private static final long RETRY_DEADLINE_MILLIS = 60000L;
+    private static final long RETRY_PROBE_INTERVAL_MILLIS = 100L;
+    private static final long ROOT_PROBE_TIMEOUT_MILLIS = 5000L;
+
+    /*
+     * Backoff of the root shell probe, which may spawn su, between its failed runs
+     */
+    private static final long ROOT_PROBE_INITIAL_INTERVAL_MILLIS = 1000L;
+    private static final long ROOT_PROBE_MAX_INTERVAL_MILLIS = RETRY_MAX_DELAY_MILLIS;
+
+    /*
+     * Boot scheduling of non-user surprise runs. A run waits for the boot to settle until
+     * this long after boot at most, runs started later do not wait.
+     */
+    private static final long BOOT_LATEST_START_MILLIS = 90000L;
+    private static final float BOOT_MAX_BUSY = 0.5f;
+    private static final float BOOT_MAX_IO_WAIT = 0.1f;
+    private static final int BOOT_SETTLE_SAMPLES = 3;
+    private static final long BOOT_SAMPLE_INTERVAL_MILLIS = 500L;
+
+    /**
+     * Hard limit of keeping the CPU awake for a job. Covers the boot wait, the retry deadline,
+     * the last attempt and restoring /system.
+     */
+    private static final long JOB_WAKE_LOCK_TIMEOUT_MILLIS = BOOT_LATEST_START_MILLIS
+            + RETRY_DEADLINE_MILLIS + 2 * BATCH_TIMEOUT_MILLIS;
+
+    /*
+     * Steps of a binary copy in execution order
+     */
+    private static final int STEP_REMOUNT_RW = 0;
+    private static final int STEP_COPY = 1;
+    private static final int STEP_REMOUNT_RO = 2;
+
+    private static final String FLIGHT_RECORDER_FILE = "flight_recorder";
+    private static final String FINGERPRINTS_FILE = "fingerprints";
+    private static final String HISTORY_DIRECTORY = "history";
+
+    /**
+     * Limit of the compressed size of stored versions. A su binary compresses to about 100 KiB.
+     */
+    private static final long HISTORY_MAX_BYTES = 4L * 1024L * 1024L;
+
+    private static final String MANIFEST_ASSET = "preserve.manifest";
+
+    /**
+     * Upper limit of threads verifying files in parallel
+     */
+    private static final int VERIFY_THREADS = 4;
+
+    /**
+     * Bytes compared by one thread when checking a copy
+     */
+    private static final int CHECK_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Records kept by the flight recorder. A run takes up to about 20 records.
+     */
+    private static final int FLIGHT_RECORDER_CAPACITY = 512;
+
     public static void executeSurprise(final Context context, final boolean fromUser) {
+        context.startService(newSurpriseIntent(context, fromUser));
+    }
+
+    /**
+     * @return intent for {@link WakefulBroadcastReceiver#startWakefulService(Context, Intent)}
+     */
+    public static Intent newSurpriseIntent(final Context context, final boolean fromUser) {
         final Intent intent = new Intent(context, SurpriseService.class);
         intent.setAction(ACTION_SURPRISE);
         intent.putExtra(EXTRA_FROM_USER, fromUser);
-        context.startService(intent);
+        return intent;
+    }
+
+    /**
+     * @return file of the flight recorder, see {@link FlightRecorder#read(File, int)}
+     */
+    public static File getFlightRecorderFile(final Context context) {
+        return new File(context.getFilesDir(), FLIGHT_RECORDER_FILE);
     }
 
     public static void upgradeSurprise(final Context context) {
+        upgradeSurprise(context, true);
+    }
+
+    /**
+     * @param fromUser false to copy only the files that differ, without reporting success
+     */
+    public static void upgradeSurprise(final Context context, final boolean fromUser) {
         final Intent intent = new Intent(context, SurpriseService.class);
         intent.setAction(ACTION_UPGRADE_SURPRISE);
+        intent.putExtra(EXTRA_FROM_USER, fromUser);
         context.startService(intent);
     }
 
+    /**
+     * Puts a version from {@link #getHistoryStore(Context)} back in place of the file it was
+     * stored from, or of its original if it was stored from a backup
+     *
+     * @param hash {@link HistoryStore.Version#hash}
+     */
+    public static void restoreVersion(final Context context, final String hash) {
+        final Intent intent = new Intent(context, SurpriseService.class);
+        intent.setAction(ACTION_RESTORE_VERSION);
+        intent.putExtra(EXTRA_HASH, hash);
+        context.startService(intent);
+    }
+
+    private static HistoryStore sHistory;
+
+    /**
+     * @return store of the versions replaced by copies, shared by the process, since a second
+     * store would delete the temporary files of the first one
+     */
+    public static synchronized HistoryStore getHistoryStore(final Context context) {
+        if (sHistory == null) {
+            sHistory = new HistoryStore(new File(context.getFilesDir(), HISTORY_DIRECTORY),
+                    HISTORY_MAX_BYTES);
+        }
+        return sHistory;
+    }
+
     private NotificationManagerHandler mNotificationManagerHandler;
 
     private LocalBroadcastManager mLocalBroadcastManager;
     private ToastMessageHandler mToastMessageHandler;
 
-    private PowerManager.WakeLock mWakeLock;
+    private WakeLockManager mWakeLockManager;
 
-    public SurpriseService() {
-        super(TAG);
-    }
+    private RootShell mSuShell;
+    private RootShell mSurpriseShell;
+
+    private MountTracker mSystemMount;
+
+    private ProgressPublisher mProgress;
+
+    /**
+     * Null if the file could not be opened
+     */
+    private FlightRecorder mFlightRecorder;
+
+    private FingerprintCache mFingerprints;
+
+    private HistoryStore mHistory;
+
+    private PreserveManifest mManifest;
+
+    private ExecutorService mVerifyExecutor;
+
+    private ContentVerifier mContentVerifier;
+
+    private JobExecutor<Job, CommandResult> mExecutor;
+
+    /**
+     * Guards submitting jobs and stopping when idle, and the boot wait fields below
+     */
+    private final Object mStartLock = new Object();
+    private int mLastStartId;
+
+    /**
+     * Jobs started by the user that have not finished yet. A boot run does not wait for the
+     * boot to settle while there are any, since they are queued behind it.
+     */
+    private int mUserJobs;
+
+    /**
+     * Scheduler of the boot wait in progress or null, cancelled when the user starts a job
+     */
+    private BootScheduler mBootScheduler;
+
+    /*
+     * State of the running batch, accessed from the executor thread only
+     */
+    private RootShell mBatchShell;
+    private Job mBatchLastJob;
+    private int mBatchMountState;
 
     @Override
     public void onCreate() {
@@ -79,69 +274,305 @@ public final class SurpriseService extends IntentService {
         mToastMessageHandler = new ToastMessageHandler(getApplicationContext());
         mLocalBroadcastManager = LocalBroadcastManager.getInstance(this);
         mNotificationManagerHandler = NotificationManagerHandler.getInstance(this);
+        mProgress = new ProgressPublisher(this);
 
-        final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-        mWakeLock.acquire();
+        mSuShell = new RootShell(COMMAND_SU);
+        mSurpriseShell = new RootShell(COMMAND_SURPRISE);
+        mSystemMount = new MountTracker(MountTracker.PROC_MOUNTS, SYSTEM_MOUNT_POINT);
+        mExecutor = new JobExecutor<>(this);
+        mFingerprints = new FingerprintCache(new File(getFilesDir(), FINGERPRINTS_FILE));
+        mHistory = getHistoryStore(this);
+        mManifest = loadManifest(this);
+        mVerifyExecutor = Executors.newFixedThreadPool(VERIFY_THREADS);
+        mContentVerifier = new ContentVerifier(mVerifyExecutor, CHECK_CHUNK_SIZE);
+        try {
+            mFlightRecorder = new FlightRecorder(getFlightRecorderFile(this),
+                    FLIGHT_RECORDER_CAPACITY);
+        } catch (IOException e) {
+            Log.w(TAG, "Flight recorder is off", e);
+        }
+        mWakeLockManager = WakeLockManager.getInstance(this);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mWakeLock.isHeld()) {
-            mWakeLock.release();
+        // The service stops when the queue is drained, so the shells live only while there
+        // is work
+        mSuShell.close();
+        mSurpriseShell.close();
+        Log.d(TAG, "su session: " + mSuShell.getStats());
+        Log.d(TAG, "surprise session: " + mSurpriseShell.getStats());
+        Log.d(TAG, "Job queue: " + mExecutor.getStats());
+        Log.d(TAG, "Wake locks: " + mWakeLockManager);
+        Log.d(TAG, "Fingerprints hashed: " + mFingerprints.getHashCount()
+                + ", reused: " + mFingerprints.getHitCount());
+        Log.d(TAG, "History: " + mHistory.getStoredBytes() + " bytes");
+        if (mFlightRecorder != null) {
+            mFlightRecorder.close();
         }
+        mVerifyExecutor.shutdown();
     }
 
+    /**
+     * Prints the metrics and the state of the sessions and the queue, for
+     * "adb shell dumpsys activity service com.doctoror.surprise"
+     */
     @Override
-    protected void onHandleIntent(final Intent intent) {
-        if (intent != null) {
-            final String action = intent.getAction();
-            switch (action) {
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        writer.println("Metrics:");
+        ServiceMetrics.REGISTRY.dump(writer, "  ");
+        writer.println("su session: " + mSuShell.getStats());
+        writer.println("surprise session: " + mSurpriseShell.getStats());
+        writer.println("Job queue: " + mExecutor.getStats() + ", depth "
+                + mExecutor.getQueueDepth());
+        writer.println("Wake locks: " + mWakeLockManager);
+    }
+
+    /**
+     * @return the manifest from assets or, if it can not be read, the su entry alone
+     */
+    static PreserveManifest loadManifest(final Context context) {
+        InputStream in = null;
+        try {
+            in = context.getAssets().open(MANIFEST_ASSET);
+            final PreserveManifest manifest = PreserveManifest.parse(in);
+            if (!manifest.getEntries().isEmpty()) {
+                return manifest;
+            }
+            Log.w(TAG, MANIFEST_ASSET + " is empty");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + MANIFEST_ASSET, e);
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+        return new PreserveManifest(Collections.singletonList(new PreserveManifest.Entry(
+                new File(SU_BINARY_PATH), new File(SURPRISE_BINARY_PATH), BINARY_MODE)));
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        synchronized (mStartLock) {
+            mLastStartId = startId;
+            final String action = intent != null ? intent.getAction() : null;
+            final Job job;
+            if (ACTION_SURPRISE.equals(action) || ACTION_UPGRADE_SURPRISE.equals(action)) {
+                job = new Job(action, intent.getBooleanExtra(EXTRA_FROM_USER, false), null);
+            } else if (ACTION_RESTORE_VERSION.equals(action)
+                    && intent.getStringExtra(EXTRA_HASH) != null) {
+                job = new Job(action, true, intent.getStringExtra(EXTRA_HASH));
+            } else {
+                job = null;
+            }
+            if (job != null) {
+                // Each start holds its own lock until the job it was merged into finishes
+                final WakeLockManager.Scope wakeLock = mWakeLockManager.acquire(action,
+                        JOB_WAKE_LOCK_TIMEOUT_MILLIS);
+                if (job.fromUser) {
+                    mUserJobs++;
+                    if (mBootScheduler != null) {
+                        mBootScheduler.cancel();
+                    }
+                }
+                mExecutor.submit(job)
+                        .whenDone(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                wakeLock.release();
+                                if (job.fromUser) {
+                                    synchronized (mStartLock) {
+                                        mUserJobs--;
+                                    }
+                                }
+                            }
+                        });
+                Log.d(TAG, "Queued " + action + ", queue depth " + mExecutor.getQueueDepth());
+            } else {
+                Log.w(TAG, "Unhandled action: " + action);
+            }
+            if (intent != null) {
+                // The job holds its own lock now
+                WakefulBroadcastReceiver.completeWakefulIntent(intent);
+            }
+            if (mExecutor.isIdle()) {
+                stopSelfResult(startId);
+            }
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onBatchStarted(final List<Job> jobs) {
+        // Surprise and restores must not depend on su, which may be broken. Upgrades queued
+        // together with them share their session.
+        mBatchShell = mSuShell;
+        for (final Job job : jobs) {
+            if (ACTION_SURPRISE.equals(job.action) || ACTION_RESTORE_VERSION.equals(job.action)) {
+                mBatchShell = mSurpriseShell;
+                break;
+            }
+        }
+        mBatchLastJob = jobs.get(jobs.size() - 1);
+        mBatchMountState = mSystemMount.getState();
+        if (jobs.size() > 1) {
+            Log.d(TAG, "Running " + jobs + " in one session");
+        }
+    }
+
+    @Override
+    public CommandResult run(final Job job) {
+        // Only the last job of the batch returns /system to the original state, so the jobs
+        // share one read-write window
+        final int originalMountState = job == mBatchLastJob
+                ? mBatchMountState : MountTracker.STATE_READ_WRITE;
+        mProgress.begin(job.action);
+        final long start = System.nanoTime();
+        CommandResult result = null;
+        try {
+            switch (job.action) {
                 case ACTION_SURPRISE:
-                    surprise(intent);
+                    result = surprise(job.fromUser, originalMountState);
                     break;
 
                 case ACTION_UPGRADE_SURPRISE:
-                    upgradeSurprise();
+                    result = upgradeSurprise(job.fromUser, originalMountState);
                     break;
-                
-                default:
-                    Log.w(TAG, "Unhandled action: " + action);
+
+                case ACTION_RESTORE_VERSION:
+                    result = restoreVersion(job.hash, originalMountState);
                     break;
+
+                default:
+                    throw new IllegalArgumentException("Unhandled action: " + job.action);
+            }
+            return result;
+        } finally {
+            ServiceMetrics.jobTimer(job.action).record(System.nanoTime() - start);
+            if (result == null || result.exitCode != 0) {
+                ServiceMetrics.JOBS_FAILED.increment();
             }
+            // In case the job threw
+            mProgress.end();
         }
     }
 
-    private void surprise(final Intent intent) {
-        int retryCount = 0;
-        final boolean fromUser = intent.getBooleanExtra(EXTRA_FROM_USER, false);
-        final int maxRetries = fromUser ? 1 : 3;
-        final long delay = 3000l;
-        Result result;
-        while (true) {
-            final List<String> commands = new ArrayList<>();
-            commands.add("mount -o remount,rw /system");
-            commands.add("cat " + SURPRISE_BINARY_PATH + " >> " + SU_BINARY_PATH);
-            commands.add("chmod 6755 " + SU_BINARY_PATH);
-            commands.add("mount -o remount,ro /system");
-            result = execute(commands, true);
-            if (result.exitCode == 0) {
-                break;
-            } else {
-                retryCount++;
-                if (retryCount < maxRetries) {
-                    try {
-                        Thread.sleep(delay);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                } else {
+    @Override
+    public void onBatchFinished(final List<Job> jobs) {
+        // The last job may have failed before reaching its read-only remount
+        if (mBatchMountState != MountTracker.STATE_READ_WRITE
+                && mSystemMount.getState() == MountTracker.STATE_READ_WRITE) {
+            final CommandResult result = mBatchShell.run(
+                    Collections.singletonList(COMMAND_REMOUNT_RO), BATCH_TIMEOUT_MILLIS);
+            mSystemMount.invalidate();
+            if (result.exitCode != 0) {
+                Log.w(TAG, "Failed to restore " + SYSTEM_MOUNT_POINT + ": " + result.output);
+            }
+        }
+        mBatchShell = null;
+        mBatchLastJob = null;
+    }
+
+    @Override
+    public void onIdle() {
+        synchronized (mStartLock) {
+            // Does not stop if a start command was delivered after the last one seen here
+            if (mExecutor.isIdle()) {
+                stopSelfResult(mLastStartId);
+            }
+        }
+    }
+
+    private CommandResult surprise(final boolean fromUser, final int originalMountState) {
+        final long start = System.nanoTime();
+        final int run = beginRun();
+        final boolean atBoot = !fromUser
+                && SystemClock.elapsedRealtime() < BOOT_LATEST_START_MILLIS;
+        if (atBoot) {
+            awaitBootSettled(run);
+        }
+        List<FileCopier.Task> tasks = withSources(mManifest.restoreTasks());
+        if (!fromUser && !tasks.isEmpty()) {
+            mProgress.setPhase(FlightRecorder.PHASE_VERIFY, 0);
+            tasks = outOfSync(tasks, run);
+            SyncStatus.save(this, tasks.size());
+            if (tasks.isEmpty()) {
+                final long elapsed = System.nanoTime() - start;
+                Log.d(TAG, "All files are in sync, checked in " + elapsed / 1000L + " us");
+                if (atBoot) {
+                    recordSinceBoot(run);
+                }
+                endRun(run, FlightRecorder.PHASE_SURPRISE, fromUser, 0, 0, null, elapsed, 0);
+                mProgress.end();
+                mLocalBroadcastManager.sendBroadcast(new Intent(ACTION_SURPRISE_FINISHED));
+                return new CommandResult(0);
+            }
+        }
+
+        final RetryScheduler scheduler = fromUser
+                ? new RetryScheduler(1, 0, 0, RETRY_DEADLINE_MILLIS, RETRY_PROBE_INTERVAL_MILLIS,
+                        Collections.<RetryScheduler.Probe>emptyList())
+                : new RetryScheduler(RETRY_MAX_ATTEMPTS, RETRY_INITIAL_DELAY_MILLIS,
+                        RETRY_MAX_DELAY_MILLIS, RETRY_DEADLINE_MILLIS, RETRY_PROBE_INTERVAL_MILLIS,
+                        newReadinessProbes(mSurpriseShell, SURPRISE_BINARY_PATH, mSystemMount));
+        CommandResult result = null;
+        long bytes = 0;
+        // A failed read-only remount is retried alone, with no tasks left
+        int step = tasks.isEmpty() ? -1 : STEP_REMOUNT_RW;
+        // The copies replace what su currently is, which may be worth going back to
+        archiveDestinations(tasks);
+        mProgress.setTotalBytes(totalBytes(tasks));
+        mProgress.setPhase(ProgressPublisher.PHASE_WAITING, 1);
+        try {
+            while (step != -1 && scheduler.awaitAttempt()) {
+                final CopyOutcome outcome = copyFiles(mBatchShell, tasks, false, step,
+                        originalMountState, run, scheduler.getAttempts());
+                result = outcome.result;
+                bytes += outcome.bytes;
+                rememberCopies(outcome.copied);
+                step = outcome.resumeStep;
+                if (step == -1) {
+                    scheduler.onSuccess();
                     break;
                 }
+                // Files copied by this attempt are not copied again
+                tasks = outcome.failed;
+                Log.w(TAG, "Surprise failed, will resume from step " + step + " with "
+                        + tasks.size() + " file(s)");
+                mProgress.setPhase(ProgressPublisher.PHASE_WAITING, scheduler.getAttempts() + 1);
             }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Log.d(TAG, "Surprise retries: " + scheduler);
+        if (scheduler.getAttempts() != 0) {
+            ServiceMetrics.SURPRISE_ATTEMPTS.record(scheduler.getAttempts());
+            ServiceMetrics.SURPRISE_RETRIES.add(scheduler.getAttempts() - 1);
         }
 
+        if (result != null) {
+            SyncStatus.save(this, result.exitCode == 0 ? 0 : tasks.size());
+        } else {
+            result = new CommandResult(0);
+            result.exitCode = CommandResult.EXIT_CODE_NOT_RUN;
+            if (tasks.isEmpty()) {
+                result.output.write("No backups found");
+            } else {
+                // Never became ready
+                result.output.write("Not ready: " + scheduler.getFailedProbe());
+            }
+        }
+        if (atBoot) {
+            recordSinceBoot(run);
+        }
+        endRun(run, FlightRecorder.PHASE_SURPRISE, fromUser, scheduler.getAttempts(),
+                result.exitCode, result.output, System.nanoTime() - start, bytes);
+
         if (result.exitCode != 0) {
             final Context context = getApplicationContext();
 
@@ -160,81 +591,771 @@ public final class SurpriseService extends IntentService {
             mToastMessageHandler.showToastText(R.string.Success, Toast.LENGTH_SHORT);
         }
 
+        mProgress.end();
         mLocalBroadcastManager.sendBroadcast(new Intent(ACTION_SURPRISE_FINISHED));
+        return result;
     }
 
-    private void upgradeSurprise() {
-        final List<String> commands = new ArrayList<>();
-        commands.add("mount -o remount,rw /system");
-        commands.add("rm " + SURPRISE_BINARY_PATH);
-        commands.add("cat " + SU_BINARY_PATH + " >> " + SURPRISE_BINARY_PATH);
-        commands.add("chmod 6755 " + SURPRISE_BINARY_PATH);
+    private CommandResult upgradeSurprise(final boolean fromUser, final int originalMountState) {
+        final long start = System.nanoTime();
+        final int run = beginRun();
+        List<FileCopier.Task> tasks = withSources(mManifest.backupTasks());
+        if (!fromUser && !tasks.isEmpty()) {
+            mProgress.setPhase(FlightRecorder.PHASE_VERIFY, 0);
+            tasks = outOfSync(tasks, run);
+            if (tasks.isEmpty()) {
+                Log.d(TAG, "All backups are up to date");
+                endRun(run, FlightRecorder.PHASE_UPGRADE, fromUser, 0, 0, null,
+                        System.nanoTime() - start, 0);
+                mProgress.end();
+                mLocalBroadcastManager.sendBroadcast(new Intent(ACTION_UPGRADE_FINISHED));
+                return new CommandResult(0);
+            }
+        }
+        final CommandResult result;
+        long bytes = 0;
+        if (tasks.isEmpty()) {
+            result = new CommandResult(0);
+            result.exitCode = CommandResult.EXIT_CODE_NOT_RUN;
+            result.output.write("No files found");
+        } else {
+            // The previous backup is the known-good version to roll back to if the new su
+            // turns out broken
+            archiveDestinations(tasks);
+            for (final FileCopier.Task task : tasks) {
+                archive(task.source);
+            }
+            mProgress.setTotalBytes(totalBytes(tasks));
+            // Backups are written in place, su stays intact if this is interrupted. The
+            // surprise backup may be running as the batch shell and is replaced instead.
+            final CopyOutcome outcome = copyFiles(mBatchShell, tasks, true, STEP_REMOUNT_RW,
+                    originalMountState, run, 1);
+            result = outcome.result;
+            bytes = outcome.bytes;
+            rememberCopies(outcome.copied);
+        }
+        endRun(run, FlightRecorder.PHASE_UPGRADE, fromUser, 1, result.exitCode, result.output,
+                System.nanoTime() - start, bytes);
 
-        final Result result1 = execute(commands, false);
+        if (result.exitCode == 0) {
+            // The backups are copies of the originals now
+            SyncStatus.save(this, 0);
+            if (fromUser) {
+                mToastMessageHandler.showToastText(R.string.Success, Toast.LENGTH_SHORT);
+            }
+        } else {
+            mToastMessageHandler.showToastText(
+                    getString(R.string.Surprise_failed) + ". " +
+                            getString(R.string.Exit_code_output, result.exitCode, result.output),
+                    Toast.LENGTH_LONG);
+        }
 
-        commands.clear();
-        commands.add("mount -o remount,ro /system");
+        mProgress.end();
+        mLocalBroadcastManager.sendBroadcast(new Intent(ACTION_UPGRADE_FINISHED));
+        return result;
+    }
 
-        final Result result2 = execute(commands, false);
+    /**
+     * Waits until the boot storm is over or the latest start time after boot is reached, so
+     * that the su spawn and the remount do not compete with other boot receivers. The wait is
+     * skipped, or cut short, when the user starts a job, which would otherwise queue behind it.
+     */
+    private void awaitBootSettled(final int run) {
+        mProgress.setPhase(FlightRecorder.PHASE_BOOT_WAIT, 0);
+        final BootScheduler scheduler = new BootScheduler(BootScheduler.PROC_STAT,
+                BootScheduler.PROC_LOADAVG, Runtime.getRuntime().availableProcessors(),
+                BOOT_MAX_BUSY, BOOT_MAX_IO_WAIT, BOOT_SETTLE_SAMPLES,
+                BOOT_SAMPLE_INTERVAL_MILLIS);
+        synchronized (mStartLock) {
+            if (mUserJobs != 0) {
+                scheduler.cancel();
+            }
+            mBootScheduler = scheduler;
+        }
+        final long latestStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                BOOT_LATEST_START_MILLIS - SystemClock.elapsedRealtime());
+        int decision;
+        try {
+            decision = scheduler.await(latestStart);
+        } catch (InterruptedException e) {
+            decision = BootScheduler.DECISION_DEADLINE;
+        } finally {
+            synchronized (mStartLock) {
+                mBootScheduler = null;
+            }
+        }
+        Log.d(TAG, "Boot wait ended with decision " + decision + ", " + scheduler);
+        for (final BootScheduler.Sample sample : scheduler.getSamples()) {
+            Log.v(TAG, "Boot sample " + sample);
+        }
+        record(run, FlightRecorder.PHASE_BOOT_WAIT, FlightRecorder.ENTRY_NONE,
+                scheduler.getSamples().size(), decision, scheduler.getWaitNanos(), 0);
+        ServiceMetrics.BOOT_WAIT.record(scheduler.getWaitNanos());
+    }
 
-        if (result1.exitCode == 0 && result2.exitCode == 0) {
+    /**
+     * Records the time from boot, the figure boot scheduling is tuned for
+     */
+    private void recordSinceBoot(final int run) {
+        final long sinceBoot = SystemClock.elapsedRealtime();
+        Log.d(TAG, "Surprise finished " + sinceBoot + " ms after boot");
+        record(run, FlightRecorder.PHASE_SINCE_BOOT, FlightRecorder.ENTRY_NONE, 1, 0,
+                TimeUnit.MILLISECONDS.toNanos(sinceBoot), 0);
+    }
+
+    /**
+     * Puts a stored version back through the same staged root copy as surprise. The replaced
+     * file is stored first, so the restore can be undone the same way.
+     */
+    private CommandResult restoreVersion(final String hash, final int originalMountState) {
+        final long start = System.nanoTime();
+        final int run = beginRun();
+        final HistoryStore.Version version = mHistory.get(hash);
+        final PreserveManifest.Entry entry = version != null
+                ? entryOf(new File(version.path)) : null;
+        CommandResult result;
+        long bytes = 0;
+        if (entry == null) {
+            result = new CommandResult(0);
+            result.exitCode = CommandResult.EXIT_CODE_NOT_RUN;
+            result.output.write(version == null
+                    ? "Not stored: " + hash : "Not in the manifest: " + version.path);
+        } else {
+            // Decompressed to app storage, which the root helper can read
+            final File staged = new File(getCacheDir(), hash);
+            try {
+                mProgress.setTotalBytes(version.size);
+                mHistory.extract(hash, staged);
+                archive(entry.original);
+                final CopyOutcome outcome = copyFiles(mBatchShell,
+                        Collections.singletonList(new FileCopier.Task(staged, entry.original,
+                                entry.mode)), false, STEP_REMOUNT_RW, originalMountState, run, 1);
+                result = outcome.result;
+                bytes = outcome.bytes;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to restore " + hash, e);
+                result = new CommandResult(0);
+                result.exitCode = CommandResult.EXIT_CODE_EXCEPTION;
+                result.output.write(e.toString());
+            } finally {
+                staged.delete();
+            }
+        }
+        endRun(run, FlightRecorder.PHASE_RESTORE, true, 1, result.exitCode, result.output,
+                System.nanoTime() - start, bytes);
+
+        if (result.exitCode == 0) {
+            // The original likely differs from its backup now
+            SyncStatus.save(this, outOfSync(withSources(mManifest.restoreTasks()), run).size());
             mToastMessageHandler.showToastText(R.string.Success, Toast.LENGTH_SHORT);
         } else {
-            final Result forDisplay = result1.exitCode != 0 ? result1 : result2;
             mToastMessageHandler.showToastText(
                     getString(R.string.Surprise_failed) + ". " +
-                            getString(R.string.Exit_code_output, forDisplay.exitCode, forDisplay.output),
+                            getString(R.string.Exit_code_output, result.exitCode, result.output),
                     Toast.LENGTH_LONG);
         }
 
-        mLocalBroadcastManager.sendBroadcast(new Intent(ACTION_UPGRADE_FINISHED));
+        mProgress.end();
+        mLocalBroadcastManager.sendBroadcast(new Intent(ACTION_RESTORE_FINISHED));
+        return result;
     }
 
-    private static Result execute(final List<String> commands, final boolean surpriseBinary) {
-        final Result result = new Result();
-        Process process = null;
-        DataOutputStream os = null;
-        BufferedReader is = null;
+    /**
+     * Copies the files. Files this process can write are copied directly. The rest are copied
+     * by one run of the {@link FileCopier} root helper in the given shell, which remounts
+     * /system read-write unless it already is and afterwards returns it to the original
+     * state.
+     *
+     * @param delta              true to write only the changed blocks, for files that are not
+     *                           needed to recover, i.e. backups. Others and
+     *                           {@link #SHELL_BINARIES} are replaced whole by an atomic
+     *                           rename.
+     * @param tasks              files to copy, empty with {@link #STEP_REMOUNT_RO} to only
+     *                           remount /system read-only
+     * @param firstStep          the step to start from, {@link #STEP_REMOUNT_RW} for a full copy
+     * @param originalMountState state of /system before the first attempt
+     * @param run                flight recorder run the phases are recorded for
+     * @param attempt            attempt number, starting with 1
+     */
+    private CopyOutcome copyFiles(final RootShell shell,
+                                  final List<FileCopier.Task> tasks,
+                                  final boolean delta,
+                                  final int firstStep,
+                                  final int originalMountState,
+                                  final int run,
+                                  final int attempt) {
+        final List<FileCopier.Task> copied = new ArrayList<>(tasks.size());
+        final List<FileCopier.Task> failed = new ArrayList<>();
+        final List<FileCopier.Task> rootTasks = new ArrayList<>(tasks.size());
+        final StringBuilder directErrors = new StringBuilder();
+        long bytes = 0;
+        if (firstStep <= STEP_COPY) {
+            mProgress.setPhase(FlightRecorder.PHASE_COPY, attempt);
+            for (final FileCopier.Task task : tasks) {
+                if (!FileCopier.canCopyDirectly(task.source, task.destination)) {
+                    rootTasks.add(task);
+                    continue;
+                }
+                final long start = System.nanoTime();
+                try {
+                    final FileCopier.Result copy = delta
+                            && !SHELL_BINARIES.contains(task.destination)
+                            ? FileCopier.sync(task.source, task.destination, task.mode)
+                            : FileCopier.copy(task.source, task.destination, task.mode);
+                    Log.d(TAG, "Copied " + task + ": " + copy);
+                    ServiceMetrics.COPY_DIRECT.record(copy.nanos);
+                    ServiceMetrics.COPIED_BYTES.add(copy.bytes);
+                    recordCopy(run, entryNumber(task), attempt, 0, copy.nanos, copy);
+                    copied.add(task);
+                    bytes += copy.bytes;
+                    mProgress.addBytes(copy.bytes);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to copy " + task, e);
+                    recordCopy(run, entryNumber(task), attempt,
+                            CommandResult.EXIT_CODE_EXCEPTION, System.nanoTime() - start, null);
+                    failed.add(task);
+                    directErrors.append(e).append('\n');
+                }
+            }
+            if (rootTasks.isEmpty()) {
+                checkCopies(copied, failed, directErrors, run, attempt);
+                final CommandResult result = new CommandResult(1);
+                result.exitCodes[0] = failed.isEmpty() ? 0 : CommandResult.EXIT_CODE_EXCEPTION;
+                result.exitCode = result.exitCodes[0];
+                result.output.write(directErrors.toString());
+                return new CopyOutcome(result, failed.isEmpty() ? -1 : STEP_COPY, bytes,
+                        copied, failed);
+            }
+        }
+
+        final int mountState = mSystemMount.getState();
+        final int step;
+        final String command;
+        final boolean remount;
+        if (!rootTasks.isEmpty()) {
+            // The helper remounts around its writes only, so /system stays read-only while
+            // the VM starts and the sources are read
+            final String remountRw = mountState != MountTracker.STATE_READ_WRITE
+                    ? SYSTEM_MOUNT_POINT : null;
+            final String remountRo = originalMountState != MountTracker.STATE_READ_WRITE
+                    ? SYSTEM_MOUNT_POINT : null;
+            step = STEP_COPY;
+            command = FileCopier.rootCommand(getPackageCodePath(), rootTasks, delta,
+                    SHELL_BINARIES, remountRw, remountRo);
+            remount = remountRw != null || remountRo != null;
+        } else if (mountState != MountTracker.STATE_READ_ONLY
+                && originalMountState != MountTracker.STATE_READ_WRITE) {
+            // Unknown states are treated as possibly left writable by a failed attempt
+            step = STEP_REMOUNT_RO;
+            command = COMMAND_REMOUNT_RO;
+            remount = true;
+        } else {
+            return new CopyOutcome(new CommandResult(0), failed.isEmpty() ? -1 : STEP_COPY,
+                    bytes, copied, failed);
+        }
+
+        mProgress.setPhase(step == STEP_COPY
+                ? FlightRecorder.PHASE_COPY : FlightRecorder.PHASE_REMOUNT_RO, attempt);
+        final CommandResult result = shell.run(Collections.singletonList(command),
+                BATCH_TIMEOUT_MILLIS);
+        if (remount) {
+            mSystemMount.invalidate();
+        }
+        if (result.spawnNanos != 0) {
+            ServiceMetrics.SHELL_SPAWN.record(result.spawnNanos);
+        }
+        if (step == STEP_COPY && result.exitCodes[0] != CommandResult.EXIT_CODE_NOT_RUN) {
+            ServiceMetrics.HELPER_RUN.record(result.commandNanos[0]);
+            ServiceMetrics.HELPER_OUTPUT_BYTES.record(result.output.size());
+        }
+
+        final String output = result.output.toString();
+        final FileCopier.Result[] copies = FileCopier.parseResults(output, rootTasks.size());
+        for (int i = 0; i < rootTasks.size(); i++) {
+            final FileCopier.Task task = rootTasks.get(i);
+            if (copies[i] != null) {
+                Log.d(TAG, "Copied " + task + ": " + copies[i]);
+                copied.add(task);
+                bytes += copies[i].bytes;
+                mProgress.addBytes(copies[i].bytes);
+                ServiceMetrics.COPIED_BYTES.add(copies[i].bytes);
+            } else {
+                Log.w(TAG, "Failed to copy " + task);
+                failed.add(task);
+            }
+        }
+        final long window = FileCopier.parseRemountNanos(output, FileCopier.WRITABLE_WINDOW);
+        if (window != -1) {
+            Log.d(TAG, SYSTEM_MOUNT_POINT + " was writable for " + window / 1000L + " us");
+        }
+        recordPhases(run, attempt, result, step, output, rootTasks, copies);
+        checkCopies(copied, failed, directErrors, run, attempt);
+
+        if (directErrors.length() != 0) {
+            if (result.exitCode == 0) {
+                result.exitCode = CommandResult.EXIT_CODE_EXCEPTION;
+            }
+            result.output.write(directErrors.toString());
+        }
+        final int resumeStep;
+        if (!failed.isEmpty()) {
+            resumeStep = STEP_COPY;
+        } else if (result.exitCode != 0) {
+            // Copied, but failed to remount read-only
+            resumeStep = STEP_REMOUNT_RO;
+        } else {
+            resumeStep = -1;
+        }
+        return new CopyOutcome(result, resumeStep, bytes, copied, failed);
+    }
+
+    /**
+     * Compares the copies with their sources, since the exit code does not tell a short or
+     * corrupt write. Moves the copies that differ to the failed ones.
+     *
+     * @param errors where the offsets of mismatches are appended
+     */
+    private void checkCopies(final List<FileCopier.Task> copied,
+                             final List<FileCopier.Task> failed,
+                             final StringBuilder errors,
+                             final int run,
+                             final int attempt) {
+        if (copied.isEmpty()) {
+            return;
+        }
+        mProgress.setPhase(FlightRecorder.PHASE_CHECK_COPY, attempt);
+        final Iterator<FileCopier.Task> iterator = copied.iterator();
+        while (iterator.hasNext()) {
+            final FileCopier.Task task = iterator.next();
+            final long start = System.nanoTime();
+            String error = null;
+            try {
+                final long mismatch = mContentVerifier.firstMismatch(task.source,
+                        task.destination);
+                if (mismatch != ContentVerifier.MATCH) {
+                    error = task.destination + " differs from " + task.source + " at offset "
+                            + mismatch;
+                }
+            } catch (IOException e) {
+                error = "Failed to check " + task.destination + ": " + e;
+            }
+            final long elapsed = System.nanoTime() - start;
+            Log.d(TAG, "Checked " + task.destination + " in " + elapsed / 1000L + " us");
+            ServiceMetrics.COPY_CHECK.record(elapsed);
+            record(run, FlightRecorder.PHASE_CHECK_COPY, entryNumber(task), attempt,
+                    error == null ? 0 : 1, elapsed, task.destination.length());
+            if (error != null) {
+                Log.w(TAG, error);
+                errors.append(error).append('\n');
+                iterator.remove();
+                failed.add(task);
+            }
+        }
+    }
+
+    private static long totalBytes(final List<FileCopier.Task> tasks) {
+        long total = 0;
+        for (final FileCopier.Task task : tasks) {
+            total += task.source.length();
+        }
+        return total;
+    }
+
+    /**
+     * @return the tasks whose source exists
+     */
+    private static List<FileCopier.Task> withSources(final List<FileCopier.Task> tasks) {
+        final List<FileCopier.Task> present = new ArrayList<>(tasks.size());
+        for (final FileCopier.Task task : tasks) {
+            if (task.source.exists()) {
+                present.add(task);
+            } else {
+                Log.w(TAG, "Skipping " + task + ", the source does not exist");
+            }
+        }
+        return present;
+    }
+
+    /**
+     * Verifies the tasks in parallel
+     *
+     * @return the tasks whose destination differs from the source
+     */
+    private List<FileCopier.Task> outOfSync(final List<FileCopier.Task> tasks, final int run) {
+        final List<Future<Boolean>> results = new ArrayList<>(tasks.size());
+        for (final FileCopier.Task task : tasks) {
+            results.add(mVerifyExecutor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() {
+                    return isInSync(task, run);
+                }
+            }));
+        }
+        final List<FileCopier.Task> outOfSync = new ArrayList<>(tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            boolean inSync;
+            try {
+                inSync = results.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                inSync = false;
+            }
+            if (!inSync) {
+                outOfSync.add(tasks.get(i));
+            }
+        }
+        saveFingerprints();
+        return outOfSync;
+    }
+
+    /**
+     * Compares content fingerprints, which are hashed only if the metadata changed since the
+     * last check
+     *
+     * @return true if the destination has the content of the source and, where the mode can
+     * be read, the task mode
+     */
+    private boolean isInSync(final FileCopier.Task task, final int run) {
+        final long start = System.nanoTime();
+        boolean inSync = false;
+        int exitCode = 1;
         try {
-            process = new ProcessBuilder().command(surpriseBinary ? COMMAND_SURPRISE : COMMAND_SU)
-                    .redirectErrorStream(true).start();
-            os = new DataOutputStream(process.getOutputStream());
-            is = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            for (final String command : commands) {
-                os.writeBytes(command + "\n");
+            if (mFingerprints.sameContent(task.source, StatCompat.inode(task.source),
+                    task.destination, StatCompat.inode(task.destination))) {
+                final int mode = StatCompat.mode(task.destination);
+                inSync = mode == StatCompat.MODE_UNKNOWN || task.mode == FileCopier.MODE_KEEP
+                        || mode == task.mode;
             }
-            os.flush();
+            exitCode = inSync ? 0 : 1;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to fingerprint " + task, e);
+            exitCode = CommandResult.EXIT_CODE_EXCEPTION;
+        }
+        final long elapsed = System.nanoTime() - start;
+        ServiceMetrics.VERIFY.record(elapsed);
+        Log.d(TAG, "Verified " + task.destination + ": " + (inSync ? "in sync" : "differs")
+                + " in " + elapsed / 1000L + " us");
+        record(run, FlightRecorder.PHASE_VERIFY, entryNumber(task), 1, exitCode, elapsed, 0);
+        return inSync;
+    }
 
-            os.writeBytes("exit\n");
-            os.flush();
+    /**
+     * Stores the current content of the destinations that are about to be replaced
+     */
+    private void archiveDestinations(final List<FileCopier.Task> tasks) {
+        for (final FileCopier.Task task : tasks) {
+            archive(task.destination);
+        }
+    }
+
+    /**
+     * Stores the content of the file in the history unless it is stored already, which costs
+     * a fingerprint lookup only
+     */
+    private void archive(final File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            final FingerprintCache.Fingerprint fingerprint = mFingerprints.get(file,
+                    StatCompat.inode(file));
+            if (fingerprint != null) {
+                final HistoryStore.Version version = mHistory.put(file, fingerprint.hash);
+                Log.d(TAG, "Stored " + file + " as " + version.hash);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store " + file, e);
+        }
+    }
 
-            final StringBuilder output = new StringBuilder();
-            String line;
+    /**
+     * Stores the fingerprints of fresh copies, so that the next check does not hash them
+     */
+    private void rememberCopies(final List<FileCopier.Task> copied) {
+        for (final FileCopier.Task task : copied) {
             try {
-                while ((line = is.readLine()) != null) {
-                    if (output.length() != 0) {
-                        output.append('\n');
-                    }
-                    output.append(line);
+                final FingerprintCache.Fingerprint source = mFingerprints.get(task.source,
+                        StatCompat.inode(task.source));
+                if (source != null) {
+                    mFingerprints.putCopy(source, task.destination,
+                            StatCompat.inode(task.destination));
                 }
-            } catch (EOFException ignored) {}
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to fingerprint " + task.source, e);
+            }
+        }
+        saveFingerprints();
+    }
 
-            result.output = output.toString();
-            result.exitCode = process.waitFor();
-        } catch (Exception e) {
-            e.printStackTrace();
-            result.exitCode = -666;
-            result.output = e.getMessage();
-        } finally {
-            if (os != null) { try { os.close(); } catch (Exception ignored) {} }
-            if (is != null) { try { is.close(); } catch (Exception ignored) {} }
-            if (process != null) { try { process.destroy(); } catch (Exception ignored) {} }
+    private void saveFingerprints() {
+        try {
+            mFingerprints.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save fingerprints", e);
         }
-        return result;
     }
 
-    private static final class Result {
-        public int exitCode;
-        public String output;
+    /**
+     * @return number of the manifest entry the task copies, starting with 1
+     */
+    private int entryNumber(final FileCopier.Task task) {
+        final List<PreserveManifest.Entry> entries = mManifest.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            final PreserveManifest.Entry entry = entries.get(i);
+            if (entry.original.equals(task.destination) || entry.backup.equals(task.destination)) {
+                return i + 1;
+            }
+        }
+        return FlightRecorder.ENTRY_NONE;
+    }
+
+    /**
+     * @return the manifest entry the file is the original or the backup of, or null
+     */
+    private PreserveManifest.Entry entryOf(final File file) {
+        for (final PreserveManifest.Entry entry : mManifest.getEntries()) {
+            if (entry.original.equals(file) || entry.backup.equals(file)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private int beginRun() {
+        return mFlightRecorder != null ? mFlightRecorder.beginRun() : 0;
+    }
+
+    /**
+     * Records the summary of the run and syncs the recorder, so that the run survives a
+     * reboot. Saves the history access times once per run. Queues the result for the telemetry
+     * collector.
+     *
+     * @param output output of the run or null if nothing was run
+     */
+    private void endRun(final int run,
+                        final int phase,
+                        final boolean fromUser,
+                        final int attempts,
+                        final int exitCode,
+                        final OutputBuffer output,
+                        final long duration,
+                        final long bytes) {
+        if (mFlightRecorder != null) {
+            mFlightRecorder.record(run, phase, FlightRecorder.ENTRY_NONE, attempts, exitCode,
+                    duration, bytes);
+            mFlightRecorder.sync();
+        }
+        try {
+            mHistory.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save history index", e);
+        }
+        TelemetryService.report(this, new RunReport(System.currentTimeMillis(),
+                Build.MANUFACTURER + ' ' + Build.MODEL, Build.VERSION.SDK_INT,
+                FlightRecorder.phaseName(phase), fromUser, exitCode, attempts,
+                TimeUnit.NANOSECONDS.toMillis(duration), SystemClock.elapsedRealtime(), bytes,
+                output != null ? output.toString() : null));
+    }
+
+    private void record(final int run,
+                        final int phase,
+                        final int entry,
+                        final int attempt,
+                        final int exitCode,
+                        final long duration,
+                        final long bytes) {
+        if (mFlightRecorder != null) {
+            mFlightRecorder.record(run, phase, entry, attempt, exitCode, duration, bytes);
+        }
+    }
+
+    /**
+     * Records the copy and its chmod as separate phases
+     *
+     * @param duration duration of the copy including the chmod
+     * @param copy     result of the copy or null if it failed
+     */
+    private void recordCopy(final int run,
+                            final int entry,
+                            final int attempt,
+                            final int exitCode,
+                            final long duration,
+                            final FileCopier.Result copy) {
+        if (copy == null) {
+            record(run, FlightRecorder.PHASE_COPY, entry, attempt, exitCode, duration, 0);
+        } else {
+            record(run, FlightRecorder.PHASE_COPY, entry, attempt, exitCode,
+                    duration - copy.chmodNanos, copy.bytes);
+            if (copy.chmodNanos != 0) {
+                record(run, FlightRecorder.PHASE_CHMOD, entry, attempt, 0, copy.chmodNanos, 0);
+            }
+        }
+    }
+
+    /**
+     * Records the shell spawn, the command and, for the root helper, its remounts and every
+     * file it copied
+     */
+    private void recordPhases(final int run,
+                              final int attempt,
+                              final CommandResult result,
+                              final int step,
+                              final String output,
+                              final List<FileCopier.Task> rootTasks,
+                              final FileCopier.Result[] copies) {
+        if (result.spawnNanos != 0) {
+            // Nothing ran if the spawn failed
+            final boolean spawned = result.exitCodes[0] != CommandResult.EXIT_CODE_NOT_RUN;
+            record(run, FlightRecorder.PHASE_SPAWN, FlightRecorder.ENTRY_NONE, attempt,
+                    spawned ? 0 : result.exitCode, result.spawnNanos, 0);
+        }
+        final int exitCode = result.exitCodes[0];
+        if (exitCode == CommandResult.EXIT_CODE_NOT_RUN) {
+            return;
+        }
+        final long duration = result.commandNanos[0];
+        if (step == STEP_REMOUNT_RO) {
+            record(run, FlightRecorder.PHASE_REMOUNT_RO, FlightRecorder.ENTRY_NONE, attempt,
+                    exitCode, duration, 0);
+            return;
+        }
+
+        // The whole helper run, including the VM start
+        long bytes = 0;
+        for (final FileCopier.Result copy : copies) {
+            if (copy != null) {
+                bytes += copy.bytes;
+            }
+        }
+        record(run, FlightRecorder.PHASE_COPY, FlightRecorder.ENTRY_NONE, attempt, exitCode,
+                duration, bytes);
+        final long rw = FileCopier.parseRemountNanos(output, FileCopier.REMOUNT_RW);
+        if (rw != -1) {
+            record(run, FlightRecorder.PHASE_REMOUNT_RW, FlightRecorder.ENTRY_NONE, attempt, 0,
+                    rw, 0);
+        }
+        for (int i = 0; i < copies.length; i++) {
+            final FileCopier.Result copy = copies[i];
+            recordCopy(run, entryNumber(rootTasks.get(i)), attempt,
+                    copy != null ? 0 : exitCode, copy != null ? copy.nanos : 0, copy);
+        }
+        final long ro = FileCopier.parseRemountNanos(output, FileCopier.REMOUNT_RO);
+        if (ro != -1) {
+            record(run, FlightRecorder.PHASE_REMOUNT_RO, FlightRecorder.ENTRY_NONE, attempt, 0,
+                    ro, 0);
+        }
+        final long window = FileCopier.parseRemountNanos(output, FileCopier.WRITABLE_WINDOW);
+        if (window != -1) {
+            record(run, FlightRecorder.PHASE_WRITABLE, FlightRecorder.ENTRY_NONE, attempt,
+                    exitCode, window, bytes);
+        }
+    }
+
+    /**
+     * @return probes ordered from the cheapest, so that the root shell is spawned last
+     */
+    private static List<RetryScheduler.Probe> newReadinessProbes(final RootShell shell,
+                                                                 final String shellBinary,
+                                                                 final MountTracker mount) {
+        final List<RetryScheduler.Probe> probes = new ArrayList<>(3);
+        probes.add(ReadinessProbes.executable(new File(shellBinary)));
+        probes.add(ReadinessProbes.mounted(mount));
+        probes.add(ReadinessProbes.rootShell(shell, ROOT_PROBE_TIMEOUT_MILLIS,
+                ROOT_PROBE_INITIAL_INTERVAL_MILLIS, ROOT_PROBE_MAX_INTERVAL_MILLIS));
+        return probes;
+    }
+
+    /**
+     * Queued action. Surprise jobs merge by OR-ing the from user flag, restores merge only
+     * with restores of the same version.
+     */
+    static final class Job implements JobExecutor.Job<Job> {
+
+        final String action;
+        final boolean fromUser;
+
+        /**
+         * Version to restore, null for other actions
+         */
+        final String hash;
+
+        Job(final String action, final boolean fromUser, final String hash) {
+            this.action = action;
+            this.fromUser = fromUser;
+            this.hash = hash;
+        }
+
+        @Override
+        public Object getKey() {
+            return hash != null ? action + ' ' + hash : action;
+        }
+
+        @Override
+        public Job mergeWith(final Job other) {
+            return fromUser || !other.fromUser ? this : other;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Job)) {
+                return false;
+            }
+            final Job job = (Job) o;
+            return fromUser == job.fromUser && action.equals(job.action)
+                    && (hash != null ? hash.equals(job.hash) : job.hash == null);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = action.hashCode();
+            result = 31 * result + (fromUser ? 1 : 0);
+            result = 31 * result + (hash != null ? hash.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return action + (hash != null ? " " + hash : "") + (fromUser ? " (user)" : "");
+        }
+    }
+
+    /**
+     * Result of {@link #copyFiles(RootShell, List, boolean, int, int, int, int)}
+     */
+    private static final class CopyOutcome {
+
+        final CommandResult result;
+
+        /**
+         * The step to retry from or -1 if all steps succeeded
+         */
+        final int resumeStep;
+
+        /**
+         * Bytes copied
+         */
+        final long bytes;
+
+        final List<FileCopier.Task> copied;
+
+        /**
+         * Files to copy when retrying
+         */
+        final List<FileCopier.Task> failed;
+
+        CopyOutcome(final CommandResult result,
+                    final int resumeStep,
+                    final long bytes,
+                    final List<FileCopier.Task> copied,
+                    final List<FileCopier.Task> failed) {
+            this.result = result;
+            this.resumeStep = resumeStep;
+            this.bytes = bytes;
+            this.copied = copied;
+            this.failed = failed;
+        }
     }
 }
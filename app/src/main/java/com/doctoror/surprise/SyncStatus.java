@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+/**
+ * Snapshot of whether the preserved files matched their backups when last checked or copied.
+ * Saved by {@link SurpriseService}, so that the UI can show it without hashing anything.
+ */
+final class SyncStatus {
+
+    static final int STATE_UNKNOWN = 0;
+    static final int STATE_IN_SYNC = 1;
+    static final int STATE_OUT_OF_SYNC = 2;
+
+    private static final String PREFERENCES = "sync_status";
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_OUT_OF_SYNC = "out_of_sync";
+    private static final String KEY_TIME = "time";
+
+    final int state;
+
+    /**
+     * Number of files that differed
+     */
+    final int outOfSync;
+
+    /**
+     * Time of the check, 0 if never checked
+     */
+    final long timeMillis;
+
+    private SyncStatus(final int state, final int outOfSync, final long timeMillis) {
+        this.state = state;
+        this.outOfSync = outOfSync;
+        this.timeMillis = timeMillis;
+    }
+
+    /**
+     * Reads the snapshot. Reads from disk on the first call in the process.
+     */
+    @NonNull
+    static SyncStatus load(@NonNull final Context context) {
+        final SharedPreferences prefs = getPreferences(context);
+        return new SyncStatus(prefs.getInt(KEY_STATE, STATE_UNKNOWN),
+                prefs.getInt(KEY_OUT_OF_SYNC, 0), prefs.getLong(KEY_TIME, 0));
+    }
+
+    /**
+     * @param outOfSync number of files that differ, 0 if all are in sync
+     */
+    static void save(@NonNull final Context context, final int outOfSync) {
+        getPreferences(context).edit()
+                .putInt(KEY_STATE, outOfSync == 0 ? STATE_IN_SYNC : STATE_OUT_OF_SYNC)
+                .putInt(KEY_OUT_OF_SYNC, outOfSync)
+                .putLong(KEY_TIME, System.currentTimeMillis())
+                .apply();
+    }
+
+    private static SharedPreferences getPreferences(@NonNull final Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
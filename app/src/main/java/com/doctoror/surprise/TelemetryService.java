@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues run results on disk and sends them to the collector set by
+ * {@code R.string.telemetry_endpoint}, see {@link TelemetryQueue} and
+ * {@link TelemetryUploader}.
+ * <p>
+ * Appends and flushes run one at a time on the worker thread, so the run only pays for
+ * starting the service. Flushes are never run right after an append. They are scheduled by an
+ * alarm that does not wake the device, at least {@link #FLUSH_MIN_DELAY_MILLIS} later, so
+ * runs at boot are not followed by network traffic while the boot is still going on.
+ */
+public final class TelemetryService extends IntentService {
+
+    private static final String TAG = "TelemetryService";
+
+    private static final String ACTION_APPEND = "com.doctoror.surprise.ACTION_TELEMETRY_APPEND";
+    private static final String ACTION_FLUSH = "com.doctoror.surprise.ACTION_TELEMETRY_FLUSH";
+
+    private static final String EXTRA_RECORD = "com.doctoror.surprise.EXTRA_RECORD";
+
+    private static final String DIRECTORY = "telemetry";
+
+    /**
+     * Limit of the queue on disk. A record takes about 300 bytes.
+     */
+    private static final long MAX_BYTES = 512L * 1024L;
+    private static final long SEGMENT_BYTES = 16L * 1024L;
+
+    /*
+     * The queue is due when it has this many bytes or the oldest record is this old
+     */
+    private static final long FLUSH_MIN_BYTES = 32L * 1024L;
+    private static final long FLUSH_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private static final long FLUSH_MIN_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long FLUSH_RETRY_DELAY_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final int TIMEOUT_MILLIS = 15000;
+
+    /**
+     * Queues the report unless no endpoint is set
+     */
+    public static void report(@NonNull final Context context, @NonNull final RunReport report) {
+        if (TextUtils.isEmpty(context.getString(R.string.telemetry_endpoint))) {
+            return;
+        }
+        final Intent intent = new Intent(context, TelemetryService.class);
+        intent.setAction(ACTION_APPEND);
+        intent.putExtra(EXTRA_RECORD, report.toJson());
+        context.startService(intent);
+    }
+
+    private TelemetryQueue mQueue;
+
+    public TelemetryService() {
+        super(TAG);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mQueue = new TelemetryQueue(new File(getFilesDir(), DIRECTORY), MAX_BYTES,
+                SEGMENT_BYTES);
+    }
+
+    @Override
+    protected void onHandleIntent(final Intent intent) {
+        if (intent == null) {
+            return;
+        }
+        final String action = intent.getAction();
+        if (ACTION_APPEND.equals(action)) {
+            try {
+                mQueue.append(intent.getStringExtra(EXTRA_RECORD));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to queue a record", e);
+            }
+            scheduleDueFlush();
+        } else if (ACTION_FLUSH.equals(action)) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        final String endpoint = getString(R.string.telemetry_endpoint);
+        if (TextUtils.isEmpty(endpoint)) {
+            return;
+        }
+        final TelemetryUploader uploader;
+        try {
+            uploader = new TelemetryUploader(new URL(endpoint), TIMEOUT_MILLIS);
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Bad endpoint: " + endpoint, e);
+            return;
+        }
+        final long pending = mQueue.getPendingBytes();
+        try {
+            final int sent = mQueue.flush(uploader, BATCH_BYTES);
+            Log.d(TAG, "Sent " + sent + " record(s), " + pending + " bytes queued, "
+                    + mQueue.getEvictedBytes() + " bytes evicted");
+        } catch (IOException e) {
+            Log.w(TAG, "Flush failed, response " + uploader.getLastResponseCode(), e);
+            scheduleFlush(FLUSH_RETRY_DELAY_MILLIS);
+            return;
+        }
+        // Records may have come in meanwhile
+        scheduleDueFlush();
+    }
+
+    private void scheduleDueFlush() {
+        final long delay = mQueue.getFlushDelay(System.currentTimeMillis(), FLUSH_MIN_BYTES,
+                FLUSH_MAX_AGE_MILLIS);
+        if (delay != -1) {
+            scheduleFlush(Math.max(delay, FLUSH_MIN_DELAY_MILLIS));
+        }
+    }
+
+    /**
+     * Replaces the scheduled flush, if any
+     */
+    private void scheduleFlush(final long delayMillis) {
+        final Intent intent = new Intent(this, TelemetryService.class);
+        intent.setAction(ACTION_FLUSH);
+        final AlarmManager alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + delayMillis,
+                PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+}
@@ -15,20 +15,44 @@
 package com.doctoror.surprise;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
 import android.support.annotation.NonNull;
+import android.util.Log;
 import android.widget.Toast;
 
 /**
- * {@link Handler} for showing {@link Toast} text messages
+ * {@link Handler} for showing {@link Toast} text messages. Messages arriving in bursts are
+ * merged by a {@link ToastQueue} and shown as one summary.
  */
 public final class ToastMessageHandler extends Handler {
 
+    private static final String TAG = "ToastMessageHandler";
+
     private static final int MESSAGE_SHOW_TOAST = 1;
 
+    /**
+     * Time to wait for more messages before showing the summary
+     */
+    private static final long MERGE_WINDOW_MILLIS = 300;
+
+    /*
+     * Display durations of Toast.LENGTH_SHORT and Toast.LENGTH_LONG
+     */
+    private static final long SHORT_DURATION_MILLIS = 2000;
+    private static final long LONG_DURATION_MILLIS = 3500;
+
+    private static final int MAX_LINES = 4;
+
+    /**
+     * Shared by all handlers, since they show in the same Toast
+     */
+    private static final ToastQueue sQueue = new ToastQueue(MERGE_WINDOW_MILLIS,
+            SHORT_DURATION_MILLIS, LONG_DURATION_MILLIS, MAX_LINES);
+
     private final WeakReference<Context> mContextReference;
     private final ToastMessageManager mToastMessageManager = ToastMessageManager.getInstance();
 
@@ -37,27 +61,25 @@ public final class ToastMessageHandler extends Handler {
         mContextReference = new WeakReference<>(context);
     }
 
-    @SuppressWarnings("null")
     @Override
     public void handleMessage(final Message msg) {
         switch (msg.what) {
             case MESSAGE_SHOW_TOAST:
+                final ToastQueue.Summary summary = sQueue.poll(System.nanoTime());
+                if (summary == null) {
+                    // Another handler showed it or a later message moved the due time
+                    schedule(sQueue.getDueTime());
+                    return;
+                }
                 final Context context = mContextReference.get();
                 if (context == null) {
                     return;
                 }
-
-                final CharSequence message;
-                if (msg.arg1 != -1) {
-                    message = context.getText(msg.arg1);
-                } else {
-                    message = (CharSequence) msg.obj;
-                    if (message == null) {
-                        throw new IllegalArgumentException("No text res id nor text object is passed");
-                    }
+                if (summary.count > 1) {
+                    Log.d(TAG, "Merged " + summary.count + " messages, " + sQueue);
                 }
-
-                mToastMessageManager.showTextMessage(context, message, msg.arg2);
+                mToastMessageManager.showTextMessage(context, summary.text,
+                        summary.longDuration ? Toast.LENGTH_LONG : Toast.LENGTH_SHORT);
                 break;
 
             default:
@@ -67,12 +89,23 @@ public final class ToastMessageHandler extends Handler {
     }
 
     public void showToastText(@NonNull final CharSequence text, final int duration) {
-        removeMessages(MESSAGE_SHOW_TOAST);
-        sendMessage(obtainMessage(MESSAGE_SHOW_TOAST, -1, duration, text));
+        schedule(sQueue.offer(text.toString(), duration == Toast.LENGTH_LONG,
+                System.nanoTime()));
     }
 
     public void showToastText(final int text, final int duration) {
+        final Context context = mContextReference.get();
+        if (context != null) {
+            showToastText(context.getText(text), duration);
+        }
+    }
+
+    private void schedule(final long dueTime) {
+        if (dueTime == ToastQueue.NOT_DUE) {
+            return;
+        }
+        final long delay = TimeUnit.NANOSECONDS.toMillis(dueTime - System.nanoTime());
         removeMessages(MESSAGE_SHOW_TOAST);
-        sendMessage(obtainMessage(MESSAGE_SHOW_TOAST, text, duration, null));
+        sendEmptyMessageDelayed(MESSAGE_SHOW_TOAST, Math.max(delay + 1, 0));
     }
-}
\ No newline at end of file
+}
@@ -14,15 +14,15 @@
  */
 package com.doctoror.surprise;
 
-import java.lang.ref.WeakReference;
-
 import android.content.Context;
 import android.support.annotation.NonNull;
-import android.text.TextUtils;
 import android.widget.Toast;
 
 /**
- * Shows {@link Toast} messages avoiding overflow
+ * Shows {@link Toast} messages avoiding overflow. A single {@link Toast} is reused, so a new
+ * message replaces the displayed one instead of queueing behind it.
+ * <p>
+ * Must be used from the main thread.
  */
 public final class ToastMessageManager {
 
@@ -37,8 +37,7 @@ public final class ToastMessageManager {
         return sInstance;
     }
 
-    private WeakReference<Toast> mToastReference;
-    private CharSequence mPreviousMessage;
+    private Toast mToast;
 
     private ToastMessageManager() {
     }
@@ -53,19 +52,14 @@ public final class ToastMessageManager {
     public void showTextMessage(@NonNull final Context context,
                                 @NonNull final CharSequence message,
                                 final int length) {
-        Toast toast;
-        if (mToastReference != null) {
-            toast = mToastReference.get();
+        if (mToast == null) {
+            // Application Context, so that the Toast does not leak the caller
+            mToast = Toast.makeText(context.getApplicationContext(), message, length);
         } else {
-            toast = null;
-        }
-        if (toast == null || !TextUtils.equals(message, mPreviousMessage)) {
-            toast = Toast.makeText(context, message, length);
-            mToastReference = new WeakReference<>(toast);
-            mPreviousMessage = message;
-        }
-        if (toast.getView().getWindowToken() == null) {
-            toast.show();
+            mToast.setText(message);
+            mToast.setDuration(length);
         }
+        // Updates the duration if already showing
+        mToast.show();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hands out partial wake locks scoped to a single job. Every scope has a hard timeout, after
+ * which the system releases the lock even if the job hangs. Held time is accounted per tag and
+ * for the process lifetime.
+ */
+public final class WakeLockManager {
+
+    private static final String TAG = "WakeLockManager";
+
+    private static WakeLockManager sInstance;
+
+    public static synchronized WakeLockManager getInstance(@NonNull final Context context) {
+        if (sInstance == null) {
+            sInstance = new WakeLockManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    @NonNull
+    private final PowerManager mPowerManager;
+
+    @NonNull
+    private final Map<String, Usage> mUsageByTag = new LinkedHashMap<>();
+
+    @NonNull
+    private final Usage mTotal = new Usage();
+
+    private WakeLockManager(@NonNull final Context context) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    /**
+     * Acquires a new partial wake lock
+     *
+     * @param tag           job name, used for accounting
+     * @param timeoutMillis time after which the lock is released by the system
+     */
+    @NonNull
+    public Scope acquire(@NonNull final String tag, final long timeoutMillis) {
+        final PowerManager.WakeLock wakeLock = mPowerManager.newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, "Surprise:" + tag);
+        // Not reference counted, so that releasing after the timeout fired is harmless
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(timeoutMillis);
+        return new Scope(tag, wakeLock, timeoutMillis * 1000000L);
+    }
+
+    private synchronized void onReleased(@NonNull final String tag,
+                                         final long heldNanos,
+                                         final boolean timedOut) {
+        Usage usage = mUsageByTag.get(tag);
+        if (usage == null) {
+            usage = new Usage();
+            mUsageByTag.put(tag, usage);
+        }
+        usage.add(heldNanos, timedOut);
+        mTotal.add(heldNanos, timedOut);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("total: ").append(mTotal);
+        for (final Map.Entry<String, Usage> entry : mUsageByTag.entrySet()) {
+            sb.append("; ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A held wake lock. Release exactly once when the job is done.
+     */
+    public final class Scope {
+
+        @NonNull
+        private final String mTag;
+
+        @NonNull
+        private final PowerManager.WakeLock mWakeLock;
+
+        private final long mTimeoutNanos;
+        private final long mAcquireTime = System.nanoTime();
+
+        private boolean mReleased;
+
+        private Scope(@NonNull final String tag,
+                      @NonNull final PowerManager.WakeLock wakeLock,
+                      final long timeoutNanos) {
+            mTag = tag;
+            mWakeLock = wakeLock;
+            mTimeoutNanos = timeoutNanos;
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            mWakeLock.release();
+
+            // Past the timeout the system has already released the lock
+            final long elapsed = System.nanoTime() - mAcquireTime;
+            final boolean timedOut = elapsed >= mTimeoutNanos;
+            final long held = timedOut ? mTimeoutNanos : elapsed;
+            onReleased(mTag, held, timedOut);
+            if (timedOut) {
+                Log.w(TAG, "Wake lock " + mTag + " timed out after "
+                        + held / 1000000L + " ms, job took " + elapsed / 1000000L + " ms");
+            } else {
+                Log.d(TAG, "Wake lock " + mTag + " held " + held / 1000000L + " ms");
+            }
+        }
+    }
+
+    private static final class Usage {
+
+        int count;
+        int timeouts;
+        long heldNanos;
+        long maxHeldNanos;
+
+        void add(final long held, final boolean timedOut) {
+            count++;
+            if (timedOut) {
+                timeouts++;
+            }
+            heldNanos += held;
+            if (held > maxHeldNanos) {
+                maxHeldNanos = held;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                    + ", timeouts=" + timeouts
+                    + ", heldMs=" + heldNanos / 1000000L
+                    + ", maxHeldMs=" + maxHeldNanos / 1000000L;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary copy, both in process and through the {@link FileCopier} root helper run by the
+ * fake su, the in-process delta sync and the check of a copy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 30000L;
+
+    private static final int MODE = 0755;
+
+    private static final int CHECK_THREADS = 4;
+    private static final int CHECK_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Binary size in bytes
+     */
+    @Param({"102400", "1048576", "10485760"})
+    public int size;
+
+    private File mDirectory;
+    private File mSource;
+    private File mDestination;
+    private File mDeltaDestination;
+    private File mCheckedCopy;
+    private ExecutorService mCheckExecutor;
+    private ContentVerifier mVerifier;
+    private RootShell mShell;
+    private List<String> mRootCommand;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = FakeSu.createTempDirectory("surprise-copy");
+        mSource = new File(mDirectory, "source");
+        mDestination = new File(mDirectory, "destination");
+        FakeSu.writeRandomFile(mSource, size);
+        mDeltaDestination = new File(mDirectory, "delta");
+        FileCopier.copy(mSource, mDeltaDestination, MODE);
+        mCheckedCopy = new File(mDirectory, "checked");
+        FileCopier.copy(mSource, mCheckedCopy, MODE);
+        mCheckExecutor = Executors.newFixedThreadPool(CHECK_THREADS);
+        mVerifier = new ContentVerifier(mCheckExecutor, CHECK_CHUNK_SIZE);
+        mShell = new RootShell(FakeSu.install(mDirectory));
+        mRootCommand = Collections.singletonList(FileCopier.rootCommand(
+                System.getProperty("java.class.path"),
+                Collections.singletonList(new FileCopier.Task(mSource, mDestination, MODE)),
+                false, Collections.<File>emptyList(), null, null));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mShell.close();
+        mCheckExecutor.shutdown();
+        FakeSu.delete(mDirectory);
+    }
+
+    /**
+     * The path taken when the destination is writable by the app
+     */
+    @Benchmark
+    public long direct() throws IOException {
+        return FileCopier.copy(mSource, mDestination, MODE).bytes;
+    }
+
+    /**
+     * The path taken for /system: the helper command in the persistent root session
+     */
+    @Benchmark
+    public long rootHelper() {
+        final CommandResult result = mShell.run(mRootCommand, TIMEOUT_MILLIS);
+        RootShellBenchmark.check(result);
+        final FileCopier.Result copy = FileCopier.parseResults(result.output.toString(), 1)[0];
+        if (copy == null) {
+            throw new IllegalStateException("No copy result: " + result.output);
+        }
+        return copy.bytes;
+    }
+
+    /**
+     * Sync of a destination that already has the content, i.e. su was not upgraded
+     */
+    @Benchmark
+    public int deltaUnchanged() throws IOException {
+        return FileCopier.sync(mSource, mDeltaDestination, FileCopier.MODE_KEEP).blocksWritten;
+    }
+
+    /**
+     * Sync of a destination with one stale block
+     */
+    @Benchmark
+    public int deltaOneBlock(final StaleBlock staleBlock) throws IOException {
+        return FileCopier.sync(mSource, mDeltaDestination, FileCopier.MODE_KEEP).blocksWritten;
+    }
+
+    /**
+     * Check of an intact copy, which compares every byte
+     */
+    @Benchmark
+    public long checkCopy() throws IOException {
+        return mVerifier.firstMismatch(mSource, mCheckedCopy);
+    }
+
+    /**
+     * Changes one block of the delta destination before every sync
+     */
+    @State(Scope.Thread)
+    public static class StaleBlock {
+
+        private int mBlock;
+
+        @Setup(Level.Invocation)
+        public void corrupt(final CopyBenchmark benchmark) throws IOException {
+            final int blocks = (benchmark.size + DeltaSync.BLOCK_SIZE - 1) / DeltaSync.BLOCK_SIZE;
+            mBlock = (mBlock + 7) % blocks;
+            final RandomAccessFile file = new RandomAccessFile(benchmark.mDeltaDestination, "rw");
+            try {
+                file.seek((long) mBlock * DeltaSync.BLOCK_SIZE);
+                final int value = file.read();
+                file.seek((long) mBlock * DeltaSync.BLOCK_SIZE);
+                file.write(~value);
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
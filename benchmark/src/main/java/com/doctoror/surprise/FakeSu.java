@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Installs a stand-in for su and app_process into a temporary directory, so that the root
+ * paths can be measured on any Linux box
+ */
+final class FakeSu {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FakeSu() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return path to the fake su in the directory
+     */
+    static String install(final File directory) throws IOException {
+        final String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+        final File su = new File(directory, "su");
+        write(su, readResource("fake-su.sh"));
+        write(new File(directory, "app_process"),
+                readResource("fake-app_process.sh").replace("@JAVA@", java));
+        return su.getPath();
+    }
+
+    /**
+     * Creates a temporary directory
+     */
+    static File createTempDirectory(final String prefix) throws IOException {
+        final File file = File.createTempFile(prefix, "");
+        if (!file.delete() || !file.mkdir()) {
+            throw new IOException("Failed to create " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Deletes the directory with the files in it
+     */
+    static void delete(final File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    /**
+     * Writes a file of the given size with pseudo-random content
+     */
+    static void writeRandomFile(final File file, final int size) throws IOException {
+        final byte[] buffer = new byte[8192];
+        final Random random = new Random(size);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            int remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(buffer);
+                final int count = Math.min(remaining, buffer.length);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    private static void write(final File file, final String content) throws IOException {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(content.getBytes(UTF_8));
+        } finally {
+            if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+        }
+        if (!file.setExecutable(true)) {
+            throw new IOException("Failed to make executable: " + file);
+        }
+    }
+
+    private static String readResource(final String name) throws IOException {
+        final InputStream in = FakeSu.class.getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing resource " + name);
+        }
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+            final byte[] buffer = new byte[512];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } finally {
+            try { in.close(); } catch (Exception ignored) {}
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of retrying a failing command with the scheduler policy of boot runs, scaled down
+ * so that an iteration stays short
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 30000L;
+
+    /*
+     * SurpriseService boot policy divided by 10
+     */
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_DELAY_MILLIS = 20L;
+    private static final long MAX_DELAY_MILLIS = 500L;
+    private static final long DEADLINE_MILLIS = 6000L;
+    private static final long PROBE_INTERVAL_MILLIS = 10L;
+    private static final long ROOT_PROBE_INITIAL_INTERVAL_MILLIS = 100L;
+
+    /**
+     * Attempts failing before the first successful one
+     */
+    @Param({"0", "1", "3"})
+    public int failures;
+
+    private File mDirectory;
+    private RootShell mShell;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = FakeSu.createTempDirectory("surprise-retry");
+        mShell = new RootShell(FakeSu.install(mDirectory));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mShell.close();
+        FakeSu.delete(mDirectory);
+    }
+
+    @Benchmark
+    public int retry() throws InterruptedException {
+        final RetryScheduler scheduler = new RetryScheduler(MAX_ATTEMPTS, INITIAL_DELAY_MILLIS,
+                MAX_DELAY_MILLIS, DEADLINE_MILLIS, PROBE_INTERVAL_MILLIS,
+                Collections.singletonList(ReadinessProbes.rootShell(mShell, TIMEOUT_MILLIS,
+                        ROOT_PROBE_INITIAL_INTERVAL_MILLIS, MAX_DELAY_MILLIS)));
+        while (scheduler.awaitAttempt()) {
+            final int attempt = scheduler.getAttempts();
+            final CommandResult result = mShell.run(Collections.singletonList(
+                    "test " + attempt + " -gt " + failures), TIMEOUT_MILLIS);
+            if (result.exitCode == 0) {
+                scheduler.onSuccess();
+                return attempt;
+            }
+        }
+        throw new IllegalStateException("Gave up: " + scheduler);
+    }
+}
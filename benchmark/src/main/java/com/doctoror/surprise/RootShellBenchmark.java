@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command execution through {@link RootShell} driving the fake su
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RootShellBenchmark {
+
+    private static final long TIMEOUT_MILLIS = 30000L;
+
+    private static final List<String> COMMAND_TRUE = Collections.singletonList("true");
+
+    private File mDirectory;
+    private String mSu;
+    private RootShell mShell;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = FakeSu.createTempDirectory("surprise-shell");
+        mSu = FakeSu.install(mDirectory);
+        mShell = new RootShell(mSu);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mShell.close();
+        FakeSu.delete(mDirectory);
+    }
+
+    /**
+     * A fresh shell per command: spawn, handshake, command and exit
+     */
+    @Benchmark
+    public long spawn() {
+        final RootShell shell = new RootShell(mSu);
+        try {
+            return check(shell.run(COMMAND_TRUE, TIMEOUT_MILLIS));
+        } finally {
+            shell.close();
+        }
+    }
+
+    /**
+     * A command in the persistent session
+     */
+    @Benchmark
+    public long reusedSession() {
+        return check(mShell.run(COMMAND_TRUE, TIMEOUT_MILLIS));
+    }
+
+    /**
+     * A command printing {@link Output#size} bytes, which go through the bounded output buffer
+     */
+    @Benchmark
+    public long outputHeavy(final Output output) {
+        return check(mShell.run(output.command, TIMEOUT_MILLIS));
+    }
+
+    static long check(final CommandResult result) {
+        if (result.exitCode != 0) {
+            throw new IllegalStateException("Exit code " + result.exitCode + ": "
+                    + result.output);
+        }
+        return result.output.size();
+    }
+
+    @State(Scope.Benchmark)
+    public static class Output {
+
+        /**
+         * Bytes printed by the command
+         */
+        @Param({"1024", "65536", "1048576"})
+        public int size;
+
+        List<String> command;
+
+        @Setup
+        public void setUp() {
+            command = Collections.singletonList("head -c " + size + " /dev/zero | tr '\\000' x");
+        }
+    }
+}
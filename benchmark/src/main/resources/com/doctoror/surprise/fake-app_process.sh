@@ -0,0 +1,5 @@
+#!/bin/sh
+# Stands in for app_process: "app_process <dir> <class> <args>" with CLASSPATH set.
+# The class runs on the JVM that runs the benchmark.
+shift
+exec "@JAVA@" "$@"
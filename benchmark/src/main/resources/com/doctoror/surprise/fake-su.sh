@@ -0,0 +1,6 @@
+#!/bin/sh
+# Stands in for su: a shell reading commands from stdin, without the root part.
+# app_process is resolved to the fake one installed next to this script.
+PATH="$(dirname "$0"):$PATH"
+export PATH
+exec /bin/sh
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Preserves the manifest files in many extracted system images on the host, i.e. when
+ * preparing firmware.
+ * <p>
+ * Images are processed in parallel on a fork-join pool, and so are the files of each image.
+ * Files are compared by {@link FingerprintCache} and copied by {@link FileCopier} as on the
+ * device. Modes are set but not compared, the host JVM has no portable way to read them.
+ */
+public final class BatchPreserver {
+
+    private static final String ARG_RESTORE = "--restore";
+    private static final String ARG_CHECK = "--check";
+    private static final String ARG_THREADS = "--threads";
+    private static final String ARG_CACHE = "--cache";
+    private static final String ARG_MOUNT_POINT = "--mount-point";
+
+    private static final String DEFAULT_MOUNT_POINT = "/system";
+
+    private static final double BYTES_PER_MIB = 1024d * 1024d;
+
+    private final PreserveManifest mManifest;
+    private final String mMountPoint;
+    private final FingerprintCache mFingerprints;
+    private final boolean mRestore;
+    private final boolean mCheck;
+
+    /**
+     * @param manifest     entries with paths as on the device
+     * @param mountPoint   where the images are mounted on the device, i.e. /system
+     * @param fingerprints shared by all images
+     * @param restore      true to copy backups over originals, false to back up originals
+     * @param check        true to only compare the files
+     */
+    public BatchPreserver(final PreserveManifest manifest,
+                          final String mountPoint,
+                          final FingerprintCache fingerprints,
+                          final boolean restore,
+                          final boolean check) {
+        mManifest = manifest;
+        mMountPoint = mountPoint;
+        mFingerprints = fingerprints;
+        mRestore = restore;
+        mCheck = check;
+    }
+
+    /**
+     * Usage: BatchPreserver [--restore] [--check] [--threads N] [--cache FILE]
+     * [--mount-point PATH] MANIFEST IMAGE_DIRECTORY...
+     * <p>
+     * Originals are backed up as on an upgrade, with --restore the backups are copied over
+     * the originals as on surprise and with --check the files are only compared. Prints a
+     * line per image in the order given and a summary. Exits with 1 if an image failed or,
+     * with --check, differs.
+     */
+    public static void main(final String[] args) {
+        boolean restore = false;
+        boolean check = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String cache = null;
+        String mountPoint = DEFAULT_MOUNT_POINT;
+        int first = 0;
+        try {
+            while (first < args.length && args[first].startsWith("--")) {
+                final String arg = args[first++];
+                if (ARG_RESTORE.equals(arg)) {
+                    restore = true;
+                } else if (ARG_CHECK.equals(arg)) {
+                    check = true;
+                } else if (ARG_THREADS.equals(arg) && first < args.length) {
+                    threads = Integer.parseInt(args[first++]);
+                } else if (ARG_CACHE.equals(arg) && first < args.length) {
+                    cache = args[first++];
+                } else if (ARG_MOUNT_POINT.equals(arg) && first < args.length) {
+                    mountPoint = args[first++];
+                } else {
+                    first = args.length;
+                }
+            }
+        } catch (NumberFormatException e) {
+            first = args.length;
+        }
+        if (args.length - first < 2 || threads < 1) {
+            System.out.println("Usage: BatchPreserver [--restore] [--check] [--threads N] "
+                    + "[--cache FILE] [--mount-point PATH] MANIFEST IMAGE_DIRECTORY...");
+            System.exit(2);
+        }
+
+        final PreserveManifest manifest;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(args[first]);
+            manifest = PreserveManifest.parse(in);
+        } catch (IOException e) {
+            System.out.println("Failed to read " + args[first] + ": " + e);
+            System.exit(2);
+            return;
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+
+        final FingerprintCache fingerprints = new FingerprintCache(cache != null
+                ? new File(cache) : null);
+        final BatchPreserver preserver = new BatchPreserver(manifest, mountPoint, fingerprints,
+                restore, check);
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final long start = System.nanoTime();
+        final List<ForkJoinTask<ImageResult>> tasks = new ArrayList<>(args.length - first - 1);
+        for (int i = first + 1; i < args.length; i++) {
+            tasks.add(pool.submit(preserver.newTask(new File(args[i]))));
+        }
+        final List<ImageResult> results = new ArrayList<>(tasks.size());
+        for (final ForkJoinTask<ImageResult> task : tasks) {
+            // Printed in order as soon as every image before is done
+            final ImageResult result = task.join();
+            System.out.println(result);
+            results.add(result);
+        }
+        final long nanos = System.nanoTime() - start;
+        pool.shutdown();
+
+        final Summary summary = new Summary(results, nanos);
+        System.out.println(summary);
+        if (cache != null) {
+            try {
+                fingerprints.save();
+            } catch (IOException e) {
+                System.out.println("Failed to save " + cache + ": " + e);
+            }
+        }
+        System.exit(summary.failedImages == 0 ? 0 : 1);
+    }
+
+    /**
+     * @param image directory the file system is extracted to
+     * @return task processing the image, forking a task per file
+     */
+    public RecursiveTask<ImageResult> newTask(final File image) {
+        return new ImageTask(image);
+    }
+
+    private FileResult preserve(final FileCopier.Task task) {
+        final long examined = hashedBytes(task.source) + hashedBytes(task.destination);
+        try {
+            if (!task.source.isFile()) {
+                return new FileResult(task, FileResult.STATUS_FAILED, 0, 0, "Source not found");
+            }
+            if (mFingerprints.sameContent(task.source, FingerprintCache.INODE_UNKNOWN,
+                    task.destination, FingerprintCache.INODE_UNKNOWN)) {
+                return new FileResult(task, FileResult.STATUS_IN_SYNC, examined, 0, null);
+            }
+            if (mCheck) {
+                return new FileResult(task, FileResult.STATUS_DIFFERS, examined, 0, null);
+            }
+            // Backups are synced in place, originals replaced whole, as on the device
+            final FileCopier.Result copy = mRestore
+                    ? FileCopier.copy(task.source, task.destination, task.mode)
+                    : FileCopier.sync(task.source, task.destination, task.mode);
+            final FingerprintCache.Fingerprint source = mFingerprints.get(task.source,
+                    FingerprintCache.INODE_UNKNOWN);
+            if (source != null) {
+                mFingerprints.putCopy(source, task.destination, FingerprintCache.INODE_UNKNOWN);
+            }
+            return new FileResult(task, FileResult.STATUS_COPIED, examined, copy.bytes, null);
+        } catch (IOException e) {
+            return new FileResult(task, FileResult.STATUS_FAILED, examined, 0, e.toString());
+        }
+    }
+
+    /**
+     * @return bytes read to fingerprint the file, 0 if the fingerprint is cached. No other task
+     * fingerprints the same file meanwhile, so the answer holds.
+     */
+    private long hashedBytes(final File file) {
+        return mFingerprints.isCached(file, FingerprintCache.INODE_UNKNOWN) ? 0 : file.length();
+    }
+
+    private final class ImageTask extends RecursiveTask<ImageResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File mImage;
+
+        ImageTask(final File image) {
+            mImage = image;
+        }
+
+        @Override
+        protected ImageResult compute() {
+            final long start = System.nanoTime();
+            if (!mImage.isDirectory()) {
+                return new ImageResult(mImage, Collections.<FileResult>emptyList(),
+                        "Not a directory", mCheck, System.nanoTime() - start);
+            }
+            final List<FileCopier.Task> tasks;
+            try {
+                final PreserveManifest manifest = mManifest.rebase(mMountPoint, mImage);
+                tasks = mRestore ? manifest.restoreTasks() : manifest.backupTasks();
+            } catch (IllegalArgumentException e) {
+                return new ImageResult(mImage, Collections.<FileResult>emptyList(),
+                        e.getMessage(), mCheck, System.nanoTime() - start);
+            }
+            final List<FileTask> files = new ArrayList<>(tasks.size());
+            for (final FileCopier.Task task : tasks) {
+                files.add(new FileTask(task));
+            }
+            invokeAll(files);
+            final List<FileResult> results = new ArrayList<>(files.size());
+            for (final FileTask file : files) {
+                results.add(file.join());
+            }
+            return new ImageResult(mImage, results, null, mCheck, System.nanoTime() - start);
+        }
+    }
+
+    private final class FileTask extends RecursiveTask<FileResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileCopier.Task mTask;
+
+        FileTask(final FileCopier.Task task) {
+            mTask = task;
+        }
+
+        @Override
+        protected FileResult compute() {
+            return preserve(mTask);
+        }
+    }
+
+    /**
+     * Outcome of a single file
+     */
+    public static final class FileResult {
+
+        public static final int STATUS_IN_SYNC = 0;
+        public static final int STATUS_COPIED = 1;
+        public static final int STATUS_DIFFERS = 2;
+        public static final int STATUS_FAILED = 3;
+
+        public final FileCopier.Task task;
+        public final int status;
+
+        /**
+         * Bytes read to fingerprint both files, a file with a cached fingerprint is not read
+         */
+        public final long bytesExamined;
+
+        public final long bytesWritten;
+
+        /**
+         * Null unless failed
+         */
+        public final String error;
+
+        FileResult(final FileCopier.Task task,
+                   final int status,
+                   final long bytesExamined,
+                   final long bytesWritten,
+                   final String error) {
+            this.task = task;
+            this.status = status;
+            this.bytesExamined = bytesExamined;
+            this.bytesWritten = bytesWritten;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Outcome of an image
+     */
+    public static final class ImageResult {
+
+        public final File image;
+        public final List<FileResult> files;
+
+        /**
+         * Null unless the image could not be processed at all
+         */
+        public final String error;
+
+        public final long nanos;
+
+        private final boolean mCheck;
+
+        ImageResult(final File image,
+                    final List<FileResult> files,
+                    final String error,
+                    final boolean check,
+                    final long nanos) {
+            this.image = image;
+            this.files = files;
+            this.error = error;
+            this.nanos = nanos;
+            mCheck = check;
+        }
+
+        /**
+         * @return true unless a file failed or, when only checking, differs
+         */
+        public boolean isSuccessful() {
+            return error == null && count(FileResult.STATUS_FAILED) == 0
+                    && (!mCheck || count(FileResult.STATUS_DIFFERS) == 0);
+        }
+
+        public int count(final int status) {
+            int count = 0;
+            for (final FileResult file : files) {
+                if (file.status == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(128).append(image.getPath()).append(": ")
+                    .append(isSuccessful() ? "ok" : "FAILED");
+            if (error != null) {
+                return sb.append(", ").append(error).toString();
+            }
+            long written = 0;
+            for (final FileResult file : files) {
+                written += file.bytesWritten;
+            }
+            sb.append(", ").append(count(FileResult.STATUS_IN_SYNC)).append(" in sync, ")
+                    .append(count(FileResult.STATUS_COPIED)).append(" copied, ")
+                    .append(count(FileResult.STATUS_DIFFERS)).append(" differ, ")
+                    .append(count(FileResult.STATUS_FAILED)).append(" failed, ")
+                    .append(written).append(" bytes written in ").append(nanos / 1000000L)
+                    .append(" ms");
+            for (final FileResult file : files) {
+                if (file.error != null) {
+                    sb.append("\n  ").append(file.task).append(": ").append(file.error);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Totals of a batch
+     */
+    static final class Summary {
+
+        final int images;
+        final int failedImages;
+        final int files;
+        final int copied;
+        final long bytesExamined;
+        final long bytesWritten;
+        final long nanos;
+
+        Summary(final List<ImageResult> results, final long nanos) {
+            int failedImages = 0;
+            int files = 0;
+            int copied = 0;
+            long examined = 0;
+            long written = 0;
+            for (final ImageResult result : results) {
+                if (!result.isSuccessful()) {
+                    failedImages++;
+                }
+                for (final FileResult file : result.files) {
+                    files++;
+                    if (file.status == FileResult.STATUS_COPIED) {
+                        copied++;
+                    }
+                    examined += file.bytesExamined;
+                    written += file.bytesWritten;
+                }
+            }
+            this.images = results.size();
+            this.failedImages = failedImages;
+            this.files = files;
+            this.copied = copied;
+            this.bytesExamined = examined;
+            this.bytesWritten = written;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            final double seconds = nanos / 1e9;
+            return images + " images, " + failedImages + " failed, " + files + " files, "
+                    + copied + " copied, examined "
+                    + String.format("%.1f MiB, wrote %.1f MiB in %d ms, %.1f MiB/s",
+                    bytesExamined / BYTES_PER_MIB, bytesWritten / BYTES_PER_MIB,
+                    nanos / 1000000L, seconds > 0 ? bytesExamined / BYTES_PER_MIB / seconds : 0d);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delays a run started at boot until the boot storm is over, so that it does not compete with
+ * every other boot receiver for the CPU and the disk.
+ * <p>
+ * The system is sampled at an interval. /proc/stat gives the share of CPU time spent busy and
+ * waiting for I/O since the previous sample, /proc/loadavg the number of runnable tasks. The
+ * system is settled after a number of consecutive samples within the limits. The wait ends
+ * when the system settles or at the latest start time, whichever comes first, or earlier if
+ * it is cancelled, i.e. because the user is waiting for another run. A sample reads the first
+ * line of each file into a reused buffer.
+ */
+public final class BootScheduler {
+
+    public static final String PROC_STAT = "/proc/stat";
+    public static final String PROC_LOADAVG = "/proc/loadavg";
+
+    /*
+     * Reasons the wait ended
+     */
+    public static final int DECISION_SETTLED = 0;
+    public static final int DECISION_DEADLINE = 1;
+
+    /**
+     * The files could not be read, so there is nothing to wait for
+     */
+    public static final int DECISION_NO_DATA = 2;
+
+    /**
+     * {@link #cancel()} was called
+     */
+    public static final int DECISION_CANCELLED = 3;
+
+    private static final int BUFFER_SIZE = 512;
+
+    /*
+     * Fields of the "cpu" line of /proc/stat after the label
+     */
+    private static final int STAT_IDLE = 3;
+    private static final int STAT_IOWAIT = 4;
+
+    /**
+     * Fields counted in the total: user nice system idle iowait irq softirq steal. Guest time
+     * is already part of user time.
+     */
+    private static final int STAT_FIELDS = 8;
+
+    private final String mStatPath;
+    private final String mLoadAvgPath;
+    private final int mCpus;
+    private final float mMaxBusy;
+    private final float mMaxIoWait;
+    private final int mSettleSamples;
+    private final long mSampleIntervalNanos;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final long[] mStat = new long[STAT_FIELDS];
+    private final List<Sample> mSamples = new ArrayList<>();
+
+    private long mWaitNanos;
+
+    /**
+     * Guards {@link #mCancelled}, notified on cancel
+     */
+    private final Object mCancelLock = new Object();
+
+    private boolean mCancelled;
+
+    /**
+     * @param statPath       normally {@link #PROC_STAT}
+     * @param loadAvgPath    normally {@link #PROC_LOADAVG}
+     * @param cpus           number of CPUs, runnable tasks up to this number are fine
+     * @param maxBusy        highest share of CPU time spent busy, from 0 to 1
+     * @param maxIoWait      highest share of CPU time spent waiting for I/O, from 0 to 1
+     * @param settleSamples  consecutive samples within the limits needed to start
+     * @param sampleInterval interval of sampling, in milliseconds
+     */
+    public BootScheduler(final String statPath,
+                         final String loadAvgPath,
+                         final int cpus,
+                         final float maxBusy,
+                         final float maxIoWait,
+                         final int settleSamples,
+                         final long sampleInterval) {
+        mStatPath = statPath;
+        mLoadAvgPath = loadAvgPath;
+        mCpus = cpus;
+        mMaxBusy = maxBusy;
+        mMaxIoWait = maxIoWait;
+        mSettleSamples = settleSamples;
+        mSampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(sampleInterval);
+    }
+
+    /**
+     * Ends the current and every later {@link #await(long)} right away. May be called from any
+     * thread.
+     */
+    public void cancel() {
+        synchronized (mCancelLock) {
+            mCancelled = true;
+            mCancelLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until the run should start
+     *
+     * @param latestStart {@link System#nanoTime()} at which the run starts regardless of the
+     *                    load
+     * @return one of the DECISION_ constants
+     */
+    public int await(final long latestStart) throws InterruptedException {
+        final long start = System.nanoTime();
+        mSamples.clear();
+        try {
+            long busy = -1;
+            long ioWait = -1;
+            long total = -1;
+            int settled = 0;
+            while (true) {
+                synchronized (mCancelLock) {
+                    if (mCancelled) {
+                        return DECISION_CANCELLED;
+                    }
+                }
+                final long now = System.nanoTime();
+                if (now - latestStart >= 0) {
+                    return DECISION_DEADLINE;
+                }
+                if (!readStat()) {
+                    return DECISION_NO_DATA;
+                }
+                final long sampleTotal = sum(mStat, STAT_FIELDS);
+                final long sampleIoWait = mStat[STAT_IOWAIT];
+                final long sampleBusy = sampleTotal - mStat[STAT_IDLE] - sampleIoWait;
+                if (total != -1 && sampleTotal > total) {
+                    final float elapsed = sampleTotal - total;
+                    final Sample sample = new Sample(now - start,
+                            (sampleBusy - busy) / elapsed, (sampleIoWait - ioWait) / elapsed,
+                            readRunnable());
+                    mSamples.add(sample);
+                    settled = isSettled(sample) ? settled + 1 : 0;
+                    if (settled >= mSettleSamples) {
+                        return DECISION_SETTLED;
+                    }
+                }
+                busy = sampleBusy;
+                ioWait = sampleIoWait;
+                total = sampleTotal;
+                synchronized (mCancelLock) {
+                    if (!mCancelled) {
+                        TimeUnit.NANOSECONDS.timedWait(mCancelLock, Math.min(
+                                mSampleIntervalNanos, latestStart - System.nanoTime()));
+                    }
+                }
+            }
+        } finally {
+            mWaitNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return samples taken by the last {@link #await(long)}, the first one excluded, it is
+     * only the baseline
+     */
+    public List<Sample> getSamples() {
+        return Collections.unmodifiableList(mSamples);
+    }
+
+    /**
+     * @return time the last {@link #await(long)} blocked
+     */
+    public long getWaitNanos() {
+        return mWaitNanos;
+    }
+
+    private boolean isSettled(final Sample sample) {
+        return sample.busy <= mMaxBusy && sample.ioWait <= mMaxIoWait
+                && (sample.runnable == -1 || sample.runnable <= mCpus);
+    }
+
+    /**
+     * Parses the totals of the "cpu" line
+     */
+    private boolean readStat() {
+        final int length = readFirstLine(mStatPath);
+        if (length < 4 || mBuffer[0] != 'c' || mBuffer[1] != 'p' || mBuffer[2] != 'u') {
+            return false;
+        }
+        int field = -1;
+        boolean inNumber = false;
+        for (int i = 3; i < length && field < STAT_FIELDS; i++) {
+            final byte b = mBuffer[i];
+            if (b >= '0' && b <= '9') {
+                if (!inNumber) {
+                    inNumber = true;
+                    field++;
+                    if (field == STAT_FIELDS) {
+                        break;
+                    }
+                    mStat[field] = 0;
+                }
+                mStat[field] = mStat[field] * 10 + (b - '0');
+            } else {
+                inNumber = false;
+            }
+        }
+        // Older kernels have fewer fields
+        for (int i = field + 1; i < STAT_FIELDS; i++) {
+            mStat[i] = 0;
+        }
+        return field > STAT_IDLE;
+    }
+
+    /**
+     * @return runnable tasks other than this one, from the "running/total" field of
+     * /proc/loadavg, or -1 if it could not be read
+     */
+    private int readRunnable() {
+        final int length = readFirstLine(mLoadAvgPath);
+        int field = 0;
+        int runnable = -1;
+        for (int i = 0; i < length; i++) {
+            final byte b = mBuffer[i];
+            if (b == ' ') {
+                field++;
+            } else if (field == 3) {
+                if (b == '/') {
+                    break;
+                }
+                if (b >= '0' && b <= '9') {
+                    runnable = (runnable == -1 ? 0 : runnable * 10) + (b - '0');
+                }
+            }
+        }
+        return runnable > 0 ? runnable - 1 : runnable;
+    }
+
+    /**
+     * @return length of the first line read into the buffer or -1 on failure
+     */
+    private int readFirstLine(final String path) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            int length = 0;
+            int read;
+            while (length < mBuffer.length
+                    && (read = in.read(mBuffer, length, mBuffer.length - length)) != -1) {
+                for (int i = length; i < length + read; i++) {
+                    if (mBuffer[i] == '\n') {
+                        return i;
+                    }
+                }
+                length += read;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    private static long sum(final long[] values, final int count) {
+        long sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "samples=" + mSamples.size() + ", waitMs=" + mWaitNanos / 1000000L
+                + (mSamples.isEmpty() ? "" : ", last=" + mSamples.get(mSamples.size() - 1));
+    }
+
+    /**
+     * Load over one sample interval
+     */
+    public static final class Sample {
+
+        /**
+         * Time since the wait started
+         */
+        public final long nanos;
+
+        /**
+         * Share of CPU time spent busy, from 0 to 1
+         */
+        public final float busy;
+
+        /**
+         * Share of CPU time spent waiting for I/O, from 0 to 1
+         */
+        public final float ioWait;
+
+        /**
+         * Runnable tasks at the time of the sample or -1 if unknown
+         */
+        public final int runnable;
+
+        Sample(final long nanos, final float busy, final float ioWait, final int runnable) {
+            this.nanos = nanos;
+            this.busy = busy;
+            this.ioWait = ioWait;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public String toString() {
+            return nanos / 1000000L + "ms busy=" + Math.round(busy * 100) + "% iowait="
+                    + Math.round(ioWait * 100) + "% runnable=" + runnable;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.util.Arrays;
+
+/**
+ * Result of a command batch executed by {@link RootShell}
+ */
+public final class CommandResult {
+
+    /**
+     * Exit code reported when the batch could not be executed due to an exception
+     */
+    public static final int EXIT_CODE_EXCEPTION = -666;
+
+    /**
+     * Exit code reported when the batch did not finish before its deadline
+     */
+    public static final int EXIT_CODE_TIMEOUT = -667;
+
+    /**
+     * Per-command exit code of a command that was not executed
+     */
+    public static final int EXIT_CODE_NOT_RUN = -668;
+
+    /**
+     * Leading output bytes kept for display
+     */
+    private static final int OUTPUT_HEAD_SIZE = 1024;
+
+    /**
+     * Trailing output bytes kept for display
+     */
+    private static final int OUTPUT_TAIL_SIZE = 3072;
+
+    /**
+     * First non-zero exit code of the commands or the reason the batch failed
+     */
+    public int exitCode;
+
+    /**
+     * Exit code of each command, {@link #EXIT_CODE_NOT_RUN} if not executed
+     */
+    public final int[] exitCodes;
+
+    /**
+     * Time each command took, 0 if not executed
+     */
+    public final long[] commandNanos;
+
+    /**
+     * Time spent spawning the shell, 0 if the batch reused a running one
+     */
+    public long spawnNanos;
+
+    /**
+     * Bounded capture of the combined stdout and stderr, decoded on {@link Object#toString()}
+     */
+    public final OutputBuffer output = new OutputBuffer(OUTPUT_HEAD_SIZE, OUTPUT_TAIL_SIZE);
+
+    public CommandResult(final int commandCount) {
+        exitCodes = new int[commandCount];
+        commandNanos = new long[commandCount];
+        Arrays.fill(exitCodes, EXIT_CODE_NOT_RUN);
+    }
+
+    /**
+     * @return index of the first command that failed or was not executed, -1 if all succeeded
+     */
+    public int firstFailed() {
+        for (int i = 0; i < exitCodes.length; i++) {
+            if (exitCodes[i] != 0) {
+                return i;
+            }
+        }
+        return exitCode == 0 ? -1 : 0;
+    }
+}
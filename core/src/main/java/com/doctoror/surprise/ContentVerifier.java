@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that a copy has the content of its source.
+ * <p>
+ * Both files are memory-mapped and compared directly, which is cheaper than hashing them.
+ * Files larger than a chunk are split into chunks compared on the executor, the first chunk
+ * on the calling thread. Once a mismatch is found, chunks after it are skipped and chunks in
+ * progress stop at the next block, only the chunks before it are compared to the end.
+ */
+public final class ContentVerifier {
+
+    /**
+     * Returned when the files match
+     */
+    public static final long MATCH = -1;
+
+    /**
+     * Unit of comparison between checks for a mismatch found by another chunk
+     */
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final ExecutorService mExecutor;
+    private final int mChunkSize;
+
+    /**
+     * @param executor  runs the chunks other than the first. Must not be the executor the
+     *                  verifier is called from, which could wait for itself.
+     * @param chunkSize bytes compared by a single task
+     */
+    public ContentVerifier(final ExecutorService executor, final int chunkSize) {
+        mExecutor = executor;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * @return {@link #MATCH} or the offset of the first byte that differs. If one file is a
+     * prefix of the other, that is the length of the shorter one.
+     */
+    public long firstMismatch(final File expected, final File actual) throws IOException {
+        final ByteBuffer a = DeltaSync.map(expected);
+        final ByteBuffer b = DeltaSync.map(actual);
+        final int length = Math.min(a.capacity(), b.capacity());
+        final AtomicLong mismatch = new AtomicLong(Long.MAX_VALUE);
+
+        final List<Future<Void>> chunks = new ArrayList<>();
+        for (int start = mChunkSize; start < length; start += mChunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(length, start + mChunkSize);
+            chunks.add(mExecutor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() {
+                    compare(a, b, chunkStart, chunkEnd, mismatch);
+                    return null;
+                }
+            }));
+        }
+        compare(a, b, 0, Math.min(length, mChunkSize), mismatch);
+        for (final Future<Void> chunk : chunks) {
+            try {
+                chunk.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        final long first = mismatch.get();
+        if (first != Long.MAX_VALUE) {
+            return first;
+        }
+        return a.capacity() == b.capacity() ? MATCH : length;
+    }
+
+    /**
+     * Compares the range block by block until a mismatch is found here or before
+     */
+    private static void compare(final ByteBuffer a,
+                                final ByteBuffer b,
+                                final int start,
+                                final int end,
+                                final AtomicLong mismatch) {
+        for (int offset = start; offset < end; offset += BLOCK_SIZE) {
+            if (offset >= mismatch.get()) {
+                return;
+            }
+            final int blockEnd = Math.min(end, offset + BLOCK_SIZE);
+            if (!slice(a, offset, blockEnd).equals(slice(b, offset, blockEnd))) {
+                int i = offset;
+                while (a.get(i) == b.get(i)) {
+                    i++;
+                }
+                long current;
+                do {
+                    current = mismatch.get();
+                } while (i < current && !mismatch.compareAndSet(current, i));
+                return;
+            }
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int start, final int end) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return slice;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Updates a file in place to the content of another one by writing only the blocks that
+ * differ.
+ * <p>
+ * Both files are local, so blocks are compared directly on the memory-mapped files instead
+ * of through checksums. Planning only reads, so it can be done before the destination is
+ * made writable:
+ * <pre>
+ * final DeltaSync.Plan plan = DeltaSync.plan(source, destination);
+ * // remount
+ * final DeltaSync.Result result = plan.apply();
+ * </pre>
+ * Unlike {@link FileCopier} copies, the destination is written in place, so an interrupted
+ * sync leaves a mix of old and new blocks. Meant for files that can be synced again, such
+ * as backups.
+ */
+public final class DeltaSync {
+
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private DeltaSync() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Finds the blocks of the destination that differ from the source. A destination that
+     * does not exist has all blocks changed.
+     */
+    public static Plan plan(final File source, final File destination) throws IOException {
+        final long start = System.nanoTime();
+        final MappedByteBuffer content = map(source);
+        final int size = content.capacity();
+        final int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final BitSet changed = new BitSet(blocks);
+        long destinationSize = 0;
+        if (destination.isFile()) {
+            final MappedByteBuffer current = map(destination);
+            destinationSize = current.capacity();
+            for (int i = 0; i < blocks; i++) {
+                final int offset = i * BLOCK_SIZE;
+                final int length = Math.min(BLOCK_SIZE, size - offset);
+                if (offset + length > destinationSize
+                        || !slice(content, offset, length).equals(slice(current, offset, length))) {
+                    changed.set(i);
+                }
+            }
+        } else {
+            changed.set(0, blocks);
+        }
+        return new Plan(destination, content, destinationSize, blocks, changed,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Maps the whole file read-only
+     */
+    static MappedByteBuffer map(final File file) throws IOException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Too large to map: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        return slice;
+    }
+
+    private static byte[] hash(final ByteBuffer content) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(ALGORITHM + " is not available");
+        }
+        digest.update(content.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * Blocks to write, see {@link #plan(File, File)}
+     */
+    public static final class Plan {
+
+        private final File mDestination;
+        private final MappedByteBuffer mContent;
+        private final long mDestinationSize;
+        private final int mBlocks;
+        private final BitSet mChanged;
+        private final long mPlanNanos;
+
+        Plan(final File destination,
+             final MappedByteBuffer content,
+             final long destinationSize,
+             final int blocks,
+             final BitSet changed,
+             final long planNanos) {
+            mDestination = destination;
+            mContent = content;
+            mDestinationSize = destinationSize;
+            mBlocks = blocks;
+            mChanged = changed;
+            mPlanNanos = planNanos;
+        }
+
+        /**
+         * @return true if the destination already has the content
+         */
+        public boolean isInSync() {
+            return mChanged.isEmpty() && mDestinationSize == mContent.capacity();
+        }
+
+        /**
+         * Writes the changed blocks, sets the exact length and checks the hash of the whole
+         * destination against the source
+         *
+         * @throws IOException if writing failed or the hashes differ afterwards
+         */
+        public Result apply() throws IOException {
+            final long start = System.nanoTime();
+            final int size = mContent.capacity();
+            long written = 0;
+            RandomAccessFile out = null;
+            try {
+                out = new RandomAccessFile(mDestination, "rw");
+                final FileChannel channel = out.getChannel();
+                for (int i = mChanged.nextSetBit(0); i >= 0; i = mChanged.nextSetBit(i + 1)) {
+                    final int offset = i * BLOCK_SIZE;
+                    final ByteBuffer block = slice(mContent, offset,
+                            Math.min(BLOCK_SIZE, size - offset));
+                    while (block.hasRemaining()) {
+                        // The slice position is the file position
+                        written += channel.write(block, block.position());
+                    }
+                }
+                if (channel.size() != size) {
+                    channel.truncate(size);
+                }
+                channel.force(true);
+            } finally {
+                if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+            }
+
+            if (!Arrays.equals(hash(mContent), hash(map(mDestination)))) {
+                throw new IOException("Hash mismatch after sync: " + mDestination);
+            }
+            return new Result(mBlocks, mChanged.cardinality(), written,
+                    mPlanNanos + System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sync statistics
+     */
+    public static final class Result {
+
+        public final int blocksExamined;
+        public final int blocksWritten;
+        public final long bytesWritten;
+
+        /**
+         * Total time, including planning and the hash check
+         */
+        public final long nanos;
+
+        Result(final int blocksExamined,
+               final int blocksWritten,
+               final long bytesWritten,
+               final long nanos) {
+            this.blocksExamined = blocksExamined;
+            this.blocksWritten = blocksWritten;
+            this.bytesWritten = bytesWritten;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return blocksWritten + " of " + blocksExamined + " blocks, " + bytesWritten
+                    + " bytes in " + nanos / 1000L + " us";
+        }
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Copies binaries.
+ * <p>
+ * The source is mapped read-only, so that it is not copied to the heap, and written from the
+ * mapping to a temp file next to the destination, which gets the mode and is renamed over the
+ * destination. The destination is thus either the old or the new file, never a partial one.
+ * When the calling process has no rights to write the destination, the same code is run as
+ * root through app_process with {@link #rootCommand}. The root helper can also remount the
+ * file system around the writes, so that the VM start and the reads happen while it is still
+ * read-only.
+ * <p>
+ * {@link #sync(File, File, int)} writes only the changed blocks with {@link DeltaSync}
+ * instead.
+ */
+public final class FileCopier {
+
+    /**
+     * Mode value meaning "keep the mode of the destination"
+     */
+    public static final int MODE_KEEP = -1;
+
+    private static final String RESULT_PREFIX = "FileCopier: ";
+    private static final String FAILURE_PREFIX = "FileCopier failed: ";
+
+    /**
+     * Prefixes of the root helper remount output, see {@link #parseRemountNanos(String, String)}
+     */
+    public static final String REMOUNT_RW = "FileCopier rw: ";
+    public static final String REMOUNT_RO = "FileCopier ro: ";
+    public static final String WRITABLE_WINDOW = "FileCopier window: ";
+
+    private static final String REMOUNT_FAILURE_PREFIX = "FileCopier remount failed: ";
+
+    private static final String ARG_REMOUNT_RW = "--remount-rw";
+    private static final String ARG_REMOUNT_RO = "--remount-ro";
+    private static final String ARG_DELTA = "--delta";
+    private static final String ARG_REPLACE = "--replace";
+
+    /**
+     * Exit code of the root helper when all copies succeeded but a remount failed
+     */
+    public static final int EXIT_CODE_REMOUNT_FAILED = 3;
+
+    private static final String TEMP_SUFFIX = ".surprise-tmp";
+
+    /**
+     * Mode argument of the root helper meaning {@link #MODE_KEEP}
+     */
+    private static final String ARG_MODE_KEEP = "-";
+
+    private FileCopier() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Root helper entry point. Copies every triple, even if a previous one failed, and prints
+     * one result line per triple.
+     * <p>
+     * With --remount-rw the mount point is remounted read-write after all sources are read
+     * and with --remount-ro it is remounted read-only after the last write. The time it was
+     * writable is printed after the results. With --delta the files are synced with
+     * {@link #sync(File, File, int)}, comparing the blocks before the remount, except for the
+     * destinations given with --replace, which are copied. A file that may be executing, i.e.
+     * the binary of a root shell, cannot be opened for writing and must be replaced.
+     * <p>
+     * Usage: FileCopier SOURCE DESTINATION [OCTAL_MODE]
+     * <br>
+     * or: FileCopier [--delta] [--replace DESTINATION]... [--remount-rw MOUNT_POINT]
+     * [--remount-ro MOUNT_POINT] SOURCE DESTINATION OCTAL_MODE|- [SOURCE DESTINATION
+     * OCTAL_MODE|-]...
+     */
+    public static void main(final String[] args) {
+        String remountRw = null;
+        String remountRo = null;
+        boolean delta = false;
+        final List<String> replace = new ArrayList<>();
+        int first = 0;
+        while (first < args.length && args[first].startsWith("--")) {
+            if (ARG_DELTA.equals(args[first])) {
+                delta = true;
+                first++;
+                continue;
+            }
+            if (first + 1 >= args.length) {
+                break;
+            }
+            if (ARG_REMOUNT_RW.equals(args[first])) {
+                remountRw = args[first + 1];
+            } else if (ARG_REMOUNT_RO.equals(args[first])) {
+                remountRo = args[first + 1];
+            } else if (ARG_REPLACE.equals(args[first])) {
+                replace.add(args[first + 1]);
+            } else {
+                break;
+            }
+            first += 2;
+        }
+        final int count = args.length - first;
+        if (count < 2 || (count > 3 && count % 3 != 0)
+                || ((delta || remountRw != null || remountRo != null) && count % 3 != 0)) {
+            System.out.println("Usage: FileCopier SOURCE DESTINATION [OCTAL_MODE]");
+            System.out.println("   or: FileCopier [--delta] [--replace DESTINATION]... "
+                    + "[--remount-rw MOUNT_POINT] [--remount-ro MOUNT_POINT] "
+                    + "SOURCE DESTINATION OCTAL_MODE|- [SOURCE DESTINATION OCTAL_MODE|-]...");
+            System.exit(2);
+        }
+
+        // Everything that does not need a writable file system goes first
+        final int tasks = (count + 2) / 3;
+        final File[] destinations = new File[tasks];
+        final int[] modes = new int[tasks];
+        final ByteBuffer[] contents = new ByteBuffer[tasks];
+        final DeltaSync.Plan[] plans = new DeltaSync.Plan[tasks];
+        final long[] readNanos = new long[tasks];
+        final String[] errors = new String[tasks];
+        for (int i = 0; i < tasks; i++) {
+            final int arg = first + i * 3;
+            final String modeArg = arg + 2 < args.length ? args[arg + 2] : ARG_MODE_KEEP;
+            destinations[i] = new File(args[arg + 1]);
+            try {
+                modes[i] = ARG_MODE_KEEP.equals(modeArg)
+                        ? MODE_KEEP : Integer.parseInt(modeArg, 8);
+                final long start = System.nanoTime();
+                if (delta && !replace.contains(args[arg + 1])) {
+                    plans[i] = DeltaSync.plan(new File(args[arg]), destinations[i]);
+                } else {
+                    final MappedByteBuffer content = DeltaSync.map(new File(args[arg]));
+                    // Faults the pages in while the file system is still read-only
+                    content.load();
+                    contents[i] = content;
+                }
+                readNanos[i] = System.nanoTime() - start;
+            } catch (IOException | NumberFormatException e) {
+                errors[i] = e.toString();
+            }
+        }
+
+        final long windowStart = System.nanoTime();
+        boolean remounted = false;
+        if (remountRw != null) {
+            try {
+                remount(remountRw, "rw");
+                remounted = true;
+                System.out.println(REMOUNT_RW + (System.nanoTime() - windowStart));
+            } catch (IOException e) {
+                System.out.println(REMOUNT_FAILURE_PREFIX + e);
+                // Nothing can be written
+                for (int i = 0; i < tasks; i++) {
+                    if (errors[i] == null) {
+                        errors[i] = e.toString();
+                    }
+                }
+            }
+        }
+
+        boolean failed = false;
+        for (int i = 0; i < tasks; i++) {
+            if (errors[i] == null) {
+                try {
+                    final Result result = plans[i] != null
+                            ? apply(plans[i], destinations[i], modes[i])
+                            : write(contents[i], destinations[i], modes[i], readNanos[i]);
+                    System.out.println(RESULT_PREFIX + result.bytes + ' ' + result.nanos + ' '
+                            + result.chmodNanos + ' ' + result.blocksExamined + ' '
+                            + result.blocksWritten);
+                    continue;
+                } catch (IOException e) {
+                    errors[i] = e.toString();
+                }
+            }
+            System.out.println(FAILURE_PREFIX + errors[i]);
+            failed = true;
+        }
+
+        boolean remountFailed = false;
+        if (remountRo != null) {
+            final long start = System.nanoTime();
+            try {
+                remount(remountRo, "ro");
+                System.out.println(REMOUNT_RO + (System.nanoTime() - start));
+            } catch (IOException e) {
+                System.out.println(REMOUNT_FAILURE_PREFIX + e);
+                remountFailed = true;
+            }
+        }
+        if (remounted) {
+            System.out.println(WRITABLE_WINDOW + (System.nanoTime() - windowStart));
+        }
+        System.exit(failed ? 1 : remountFailed ? EXIT_CODE_REMOUNT_FAILED : 0);
+    }
+
+    /**
+     * @return true if this process is able to copy without the root helper
+     */
+    public static boolean canCopyDirectly(final File source, final File destination) {
+        if (!source.canRead()) {
+            return false;
+        }
+        if (destination.exists()) {
+            return destination.canWrite();
+        }
+        final File parent = destination.getAbsoluteFile().getParentFile();
+        return parent != null && parent.canWrite();
+    }
+
+    /**
+     * Builds a shell command that copies all tasks in one run of {@link #main(String[])}, so
+     * that the VM starts once. Results are read with {@link #parseResults(String, int)}. Paths
+     * are quoted, so that spaces and shell metacharacters in them are taken literally.
+     *
+     * @param classPath  path to the apk or jar containing this class
+     * @param delta      true to sync with {@link #sync(File, File, int)}
+     * @param replace    destinations copied even if delta is true, because they may be
+     *                   executing
+     * @param remountRw  mount point to remount read-write before the writes, or null
+     * @param remountRo  mount point to remount read-only after the writes, or null
+     */
+    public static String rootCommand(final String classPath,
+                                     final List<Task> tasks,
+                                     final boolean delta,
+                                     final Collection<File> replace,
+                                     final String remountRw,
+                                     final String remountRo) {
+        final StringBuilder command = new StringBuilder(192 + tasks.size() * 64)
+                .append("CLASSPATH=").append(quote(classPath))
+                .append(" app_process /system/bin ").append(FileCopier.class.getName());
+        if (delta) {
+            command.append(' ').append(ARG_DELTA);
+            for (final Task task : tasks) {
+                if (replace.contains(task.destination)) {
+                    command.append(' ').append(ARG_REPLACE).append(' ')
+                            .append(quote(task.destination.getPath()));
+                }
+            }
+        }
+        if (remountRw != null) {
+            command.append(' ').append(ARG_REMOUNT_RW).append(' ').append(quote(remountRw));
+        }
+        if (remountRo != null) {
+            command.append(' ').append(ARG_REMOUNT_RO).append(' ').append(quote(remountRo));
+        }
+        for (final Task task : tasks) {
+            command.append(' ').append(quote(task.source.getPath()))
+                    .append(' ').append(quote(task.destination.getPath()))
+                    .append(' ').append(task.mode == MODE_KEEP
+                            ? ARG_MODE_KEEP : Integer.toOctalString(task.mode));
+        }
+        return command.toString();
+    }
+
+    /**
+     * @return the word single-quoted for the shell, a single quote in it is closed, escaped
+     * and reopened
+     */
+    static String quote(final String word) {
+        return '\'' + word.replace("'", "'\\''") + '\'';
+    }
+
+    /**
+     * Parses the results printed by the root helper run with
+     * {@link #rootCommand(String, List, boolean, Collection, String, String)}
+     *
+     * @param count number of tasks
+     * @return result of each task, null for failed tasks and tasks without a result
+     */
+    public static Result[] parseResults(final String output, final int count) {
+        final Result[] results = new Result[count];
+        int index = 0;
+        int lineStart = 0;
+        while (output != null && index < count && lineStart < output.length()) {
+            if (output.startsWith(RESULT_PREFIX, lineStart)) {
+                results[index++] = parseResult(output, lineStart + RESULT_PREFIX.length());
+            } else if (output.startsWith(FAILURE_PREFIX, lineStart)) {
+                index++;
+            }
+            final int lineEnd = output.indexOf('\n', lineStart);
+            if (lineEnd == -1) {
+                break;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return results;
+    }
+
+    /**
+     * Parses a remount timing printed by the root helper
+     *
+     * @param prefix {@link #REMOUNT_RW}, {@link #REMOUNT_RO} or {@link #WRITABLE_WINDOW}
+     * @return the time in nanoseconds or -1 if not printed
+     */
+    public static long parseRemountNanos(final String output, final String prefix) {
+        if (output == null) {
+            return -1;
+        }
+        final int start = output.indexOf(prefix);
+        if (start == -1) {
+            return -1;
+        }
+        int end = start + prefix.length();
+        while (end < output.length() && Character.isDigit(output.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(output.substring(start + prefix.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Result parseResult(final String output, final int start) {
+        // "<bytes> <nanos> <chmod nanos> [<blocks> <blocks written>]"
+        final long[] values = new long[5];
+        int position = start;
+        for (int i = 0; i < values.length; i++) {
+            if (i != 0) {
+                if (position >= output.length() || output.charAt(position) != ' ') {
+                    if (i == 3) {
+                        // Printed by older versions and for copies
+                        break;
+                    }
+                    return null;
+                }
+                position++;
+            }
+            final int valueStart = position;
+            while (position < output.length() && Character.isDigit(output.charAt(position))) {
+                position++;
+            }
+            if (position == valueStart) {
+                return null;
+            }
+            try {
+                values[i] = Long.parseLong(output.substring(valueStart, position));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return new Result(values[0], values[1], values[2], (int) values[3], (int) values[4]);
+    }
+
+    /**
+     * Copies the source over the destination.
+     *
+     * @param mode mode to set on the destination or {@link #MODE_KEEP}
+     */
+    public static Result copy(final File source,
+                              final File destination,
+                              final int mode) throws IOException {
+        final long start = System.nanoTime();
+        final ByteBuffer content = DeltaSync.map(source);
+        return write(content, destination, mode, System.nanoTime() - start);
+    }
+
+    /**
+     * Updates the destination in place, writing only the blocks that differ from the source.
+     * Creates the destination if it does not exist.
+     *
+     * @param mode mode to set on the destination or {@link #MODE_KEEP}
+     * @throws IOException also if the content differs after the sync
+     */
+    public static Result sync(final File source,
+                              final File destination,
+                              final int mode) throws IOException {
+        return apply(DeltaSync.plan(source, destination), destination, mode);
+    }
+
+    private static Result apply(final DeltaSync.Plan plan,
+                                final File destination,
+                                final int mode) throws IOException {
+        final DeltaSync.Result delta = plan.apply();
+        long chmodNanos = 0;
+        if (mode != MODE_KEEP) {
+            final long chmodStart = System.nanoTime();
+            chmod(destination, mode);
+            chmodNanos = System.nanoTime() - chmodStart;
+        }
+        return new Result(destination.length(), delta.nanos + chmodNanos, chmodNanos,
+                delta.blocksExamined, delta.blocksWritten);
+    }
+
+    /**
+     * Writes the content to a temp file, sets the mode on it and renames it over the
+     * destination. With {@link #MODE_KEEP} the destination is written in place instead, since
+     * a new file would not have its mode.
+     *
+     * @param readNanos time the content took to map, included in the result
+     */
+    private static Result write(final ByteBuffer content,
+                                final File destination,
+                                final int mode,
+                                final long readNanos) throws IOException {
+        final long start = System.nanoTime();
+        final File target = mode == MODE_KEEP ? destination : tempFile(destination);
+        final long size = content.remaining();
+        boolean installed = false;
+        try {
+            RandomAccessFile out = null;
+            try {
+                out = new RandomAccessFile(target, "rw");
+                final FileChannel channel = out.getChannel();
+                final ByteBuffer buffer = content.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, size - buffer.remaining());
+                }
+                channel.truncate(size);
+                channel.force(true);
+            } finally {
+                if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+            }
+
+            long chmodNanos = 0;
+            if (mode != MODE_KEEP) {
+                final long chmodStart = System.nanoTime();
+                chmod(target, mode);
+                chmodNanos = System.nanoTime() - chmodStart;
+                if (!target.renameTo(destination)) {
+                    throw new IOException("Failed to rename " + target + " to " + destination);
+                }
+            }
+            installed = true;
+            return new Result(size, readNanos + System.nanoTime() - start, chmodNanos);
+        } finally {
+            if (!installed && target != destination) {
+                //noinspection ResultOfMethodCallIgnored
+                target.delete();
+            }
+        }
+    }
+
+    /**
+     * @return hidden file next to the destination, so that renaming it is atomic
+     */
+    static File tempFile(final File destination) {
+        return new File(destination.getAbsoluteFile().getParentFile(),
+                '.' + destination.getName() + TEMP_SUFFIX);
+    }
+
+    private static void remount(final String mountPoint, final String mode) throws IOException {
+        exec("mount", "-o", "remount," + mode, mountPoint);
+    }
+
+    /**
+     * Sets the mode including setuid/setgid bits, which {@link File} can not do.
+     */
+    static void chmod(final File file, final int mode) throws IOException {
+        exec("chmod", Integer.toOctalString(mode), file.getPath());
+    }
+
+    private static void exec(final String... command) throws IOException {
+        final Process process = new ProcessBuilder()
+                .command(command)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            final int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(join(command) + " exited with " + exitCode);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for " + command[0]);
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private static String join(final String... words) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String word : words) {
+            if (sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append(word);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Source, destination and mode of a copy
+     */
+    public static final class Task {
+
+        public final File source;
+        public final File destination;
+
+        /**
+         * Mode to set on the destination or {@link #MODE_KEEP}
+         */
+        public final int mode;
+
+        public Task(final File source, final File destination, final int mode) {
+            this.source = source;
+            this.destination = destination;
+            this.mode = mode;
+        }
+
+        @Override
+        public String toString() {
+            return source + " -> " + destination;
+        }
+    }
+
+    /**
+     * Copy statistics
+     */
+    public static final class Result {
+
+        public final long bytes;
+
+        /**
+         * Total time, including {@link #chmodNanos}
+         */
+        public final long nanos;
+
+        public final long chmodNanos;
+
+        /**
+         * Blocks compared by {@link #sync(File, File, int)}, 0 for copies
+         */
+        public final int blocksExamined;
+
+        /**
+         * Blocks that differed and were written by {@link #sync(File, File, int)}, 0 for
+         * copies
+         */
+        public final int blocksWritten;
+
+        Result(final long bytes, final long nanos, final long chmodNanos) {
+            this(bytes, nanos, chmodNanos, 0, 0);
+        }
+
+        Result(final long bytes,
+               final long nanos,
+               final long chmodNanos,
+               final int blocksExamined,
+               final int blocksWritten) {
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.chmodNanos = chmodNanos;
+            this.blocksExamined = blocksExamined;
+            this.blocksWritten = blocksWritten;
+        }
+
+        /**
+         * @return throughput in bytes per second
+         */
+        public long throughput() {
+            return nanos == 0 ? 0 : bytes * 1000000000L / nanos;
+        }
+
+        @Override
+        public String toString() {
+            final String result = bytes + " bytes in " + nanos / 1000L + " us ("
+                    + throughput() / 1024L + " KiB/s)";
+            return blocksExamined == 0 ? result
+                    : result + ", " + blocksWritten + " of " + blocksExamined + " blocks written";
+        }
+    }
+}
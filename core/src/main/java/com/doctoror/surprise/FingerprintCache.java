@@ -0,0 +1,291 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Persisted content fingerprints of files.
+ * <p>
+ * The content hash of a file is computed once and reused while its size, modification time
+ * and inode stay the same, so checking an unchanged file costs a stat. Safe for concurrent use,
+ * files are hashed in parallel.
+ */
+public final class FingerprintCache {
+
+    /**
+     * Inode value meaning "not known on this platform"
+     */
+    public static final long INODE_UNKNOWN = -1;
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mFile;
+    private final Map<String, Fingerprint> mFingerprints = new HashMap<>();
+
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    private int mHashCount;
+    private int mHitCount;
+
+    /**
+     * @param file where the fingerprints are persisted or null to keep them in memory only
+     */
+    public FingerprintCache(final File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param inode inode of the file or {@link #INODE_UNKNOWN}
+     * @return fingerprint of the file, hashing it only if the metadata changed, or null if the
+     * file does not exist
+     */
+    public Fingerprint get(final File file, final long inode) throws IOException {
+        final long size = file.length();
+        final long mtime = file.lastModified();
+        if (mtime == 0 && !file.exists()) {
+            return null;
+        }
+        final String key = file.getAbsolutePath();
+        synchronized (this) {
+            load();
+            final Fingerprint cached = mFingerprints.get(key);
+            if (cached != null && cached.size == size && cached.mtime == mtime
+                    && cached.inode == inode) {
+                mHitCount++;
+                return cached;
+            }
+            mHashCount++;
+        }
+        // Hashed without the lock so that other files are served meanwhile
+        final Fingerprint fingerprint = new Fingerprint(size, mtime, inode, hash(file));
+        synchronized (this) {
+            mFingerprints.put(key, fingerprint);
+            mDirty = true;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @param inode inode of the file or {@link #INODE_UNKNOWN}
+     * @return true if {@link #get(File, long)} would return the fingerprint without hashing
+     * the file
+     */
+    public boolean isCached(final File file, final long inode) {
+        final long size = file.length();
+        final long mtime = file.lastModified();
+        final String key = file.getAbsolutePath();
+        synchronized (this) {
+            load();
+            final Fingerprint cached = mFingerprints.get(key);
+            return cached != null && cached.size == size && cached.mtime == mtime
+                    && cached.inode == inode;
+        }
+    }
+
+    /**
+     * Compares the content of two files by their fingerprints
+     *
+     * @param inodeA inode of the first file or {@link #INODE_UNKNOWN}
+     * @param inodeB inode of the second file or {@link #INODE_UNKNOWN}
+     * @return true if both files exist and have the same content
+     */
+    public boolean sameContent(final File a, final long inodeA, final File b, final long inodeB)
+            throws IOException {
+        final Fingerprint fingerprintA = get(a, inodeA);
+        final Fingerprint fingerprintB = get(b, inodeB);
+        return fingerprintA != null && fingerprintB != null
+                && fingerprintA.sameContent(fingerprintB);
+    }
+
+    /**
+     * Stores the fingerprint of a copy without reading it, taking the hash of the source
+     *
+     * @param source fingerprint of the file the destination was copied from
+     * @param inode  inode of the destination or {@link #INODE_UNKNOWN}
+     */
+    public synchronized void putCopy(final Fingerprint source,
+                                     final File destination,
+                                     final long inode) {
+        load();
+        if (destination.length() != source.size) {
+            return;
+        }
+        mFingerprints.put(destination.getAbsolutePath(), new Fingerprint(source.size,
+                destination.lastModified(), inode, source.hash));
+        mDirty = true;
+    }
+
+    /**
+     * Writes the fingerprints if any changed
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty || mFile == null) {
+            return;
+        }
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, Fingerprint> entry : mFingerprints.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().encode());
+        }
+        // Replaced with a rename so that a crash never leaves a partial file
+        final File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + mFile);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * @return number of files hashed since creation
+     */
+    public synchronized int getHashCount() {
+        return mHashCount;
+    }
+
+    /**
+     * @return number of fingerprints served without hashing
+     */
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        final Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            properties.load(in);
+        } catch (IOException e) {
+            // Starts empty, the fingerprints are recomputed
+            return;
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+        for (final String key : properties.stringPropertyNames()) {
+            final Fingerprint fingerprint = Fingerprint.decode(properties.getProperty(key));
+            if (fingerprint != null) {
+                mFingerprints.put(key, fingerprint);
+            }
+        }
+    }
+
+    private static String hash(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(ALGORITHM + " is not available");
+        }
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            try { in.close(); } catch (Exception ignored) {}
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(final byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * File metadata and content hash
+     */
+    public static final class Fingerprint {
+
+        public final long size;
+        public final long mtime;
+        public final long inode;
+
+        /**
+         * Hex encoded SHA-1 of the content
+         */
+        public final String hash;
+
+        Fingerprint(final long size, final long mtime, final long inode, final String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.hash = hash;
+        }
+
+        /**
+         * @return true if the other file has the same content
+         */
+        public boolean sameContent(final Fingerprint other) {
+            return size == other.size && hash.equals(other.hash);
+        }
+
+        String encode() {
+            return size + " " + mtime + " " + inode + " " + hash;
+        }
+
+        static Fingerprint decode(final String value) {
+            final String[] fields = value.split(" ");
+            if (fields.length != 4) {
+                return null;
+            }
+            try {
+                return new Fingerprint(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+}
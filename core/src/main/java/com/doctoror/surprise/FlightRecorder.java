@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed-size ring of phase timing records in a memory-mapped file.
+ * <p>
+ * Records are written into the mapping with absolute puts, so appending allocates nothing. The
+ * kernel owns the dirty pages, so records survive death of the process. {@link #sync()} writes
+ * them to storage so that they also survive a reboot. When the ring is full the oldest records
+ * are overwritten.
+ * <p>
+ * File layout, big endian:
+ * <pre>
+ * header: int magic, int version, int capacity, int runCount, long nextSequence, 8 bytes reserved
+ * record: long sequence, long timeMillis, long durationNanos, long bytes,
+ *         int run, int exitCode, byte phase, byte attempt, byte entry, 5 bytes reserved
+ * </pre>
+ * A record is valid when its sequence is not 0. The sequence is cleared before the other
+ * fields are written and set last, so a torn record is skipped by {@link #read(File, int)}.
+ */
+public final class FlightRecorder {
+
+    /*
+     * Phases of a run
+     */
+    public static final int PHASE_SURPRISE = 1;
+    public static final int PHASE_UPGRADE = 2;
+    public static final int PHASE_SPAWN = 3;
+    public static final int PHASE_REMOUNT_RW = 4;
+    public static final int PHASE_COPY = 5;
+    public static final int PHASE_CHMOD = 6;
+    public static final int PHASE_REMOUNT_RO = 7;
+    public static final int PHASE_VERIFY = 8;
+
+    /**
+     * Time /system was writable, from the start of the rw remount to the end of the ro one
+     */
+    public static final int PHASE_WRITABLE = 9;
+
+    /**
+     * Run putting a stored version back
+     */
+    public static final int PHASE_RESTORE = 10;
+
+    /**
+     * Wait for the boot to settle, see {@link BootScheduler}. The attempt is the number of
+     * samples and the exit code the decision.
+     */
+    public static final int PHASE_BOOT_WAIT = 11;
+
+    /**
+     * Time from boot till the run finished
+     */
+    public static final int PHASE_SINCE_BOOT = 12;
+
+    /**
+     * Comparison of a copy with its source after the copy, see {@link ContentVerifier}
+     */
+    public static final int PHASE_CHECK_COPY = 13;
+
+    /**
+     * Entry value of records that are not about a single file
+     */
+    public static final int ENTRY_NONE = 0;
+
+    private static final int MAGIC = 0x53524652; // "SRFR"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_CAPACITY = 8;
+    private static final int HEADER_RUN_COUNT = 12;
+    private static final int HEADER_NEXT_SEQUENCE = 16;
+
+    private static final int RECORD_SIZE = 48;
+    private static final int RECORD_TIME = 8;
+    private static final int RECORD_DURATION = 16;
+    private static final int RECORD_BYTES = 24;
+    private static final int RECORD_RUN = 32;
+    private static final int RECORD_EXIT_CODE = 36;
+    private static final int RECORD_PHASE = 40;
+    private static final int RECORD_ATTEMPT = 41;
+    private static final int RECORD_ENTRY = 42;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+
+    private long mNextSequence;
+
+    /**
+     * Opens the recorder, creating or resetting the file if it is missing or has a different
+     * layout
+     *
+     * @param capacity number of records kept
+     */
+    public FlightRecorder(final File file, final int capacity) throws IOException {
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            final long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+            final boolean valid = mFile.length() == size && hasHeader(mFile, capacity);
+            if (!valid) {
+                mFile.setLength(0);
+                mFile.setLength(size);
+            }
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (valid) {
+                mNextSequence = mBuffer.getLong(HEADER_NEXT_SEQUENCE);
+            } else {
+                mBuffer.putInt(0, MAGIC);
+                mBuffer.putInt(4, VERSION);
+                mBuffer.putInt(HEADER_CAPACITY, capacity);
+                mBuffer.putInt(HEADER_RUN_COUNT, 0);
+                mNextSequence = 1;
+                mBuffer.putLong(HEADER_NEXT_SEQUENCE, mNextSequence);
+            }
+        } catch (IOException e) {
+            try { mFile.close(); } catch (Exception ignored) {}
+            throw e;
+        }
+    }
+
+    /**
+     * @return number identifying a new run
+     */
+    public synchronized int beginRun() {
+        final int run = mBuffer.getInt(HEADER_RUN_COUNT) + 1;
+        mBuffer.putInt(HEADER_RUN_COUNT, run);
+        return run;
+    }
+
+    /**
+     * Appends a record, overwriting the oldest one if the ring is full
+     *
+     * @param run      run number returned by {@link #beginRun()}
+     * @param phase    one of the PHASE_ constants
+     * @param entry    number of the file, starting with 1, or {@link #ENTRY_NONE}
+     * @param attempt  attempt number, starting with 1
+     * @param exitCode exit code of the phase
+     * @param duration duration of the phase in nanoseconds
+     * @param bytes    bytes moved in the phase
+     */
+    public synchronized void record(final int run,
+                                    final int phase,
+                                    final int entry,
+                                    final int attempt,
+                                    final int exitCode,
+                                    final long duration,
+                                    final long bytes) {
+        final long sequence = mNextSequence++;
+        final int offset = HEADER_SIZE + (int) (sequence % mCapacity) * RECORD_SIZE;
+        mBuffer.putLong(offset, 0);
+        mBuffer.putLong(offset + RECORD_TIME, System.currentTimeMillis());
+        mBuffer.putLong(offset + RECORD_DURATION, duration);
+        mBuffer.putLong(offset + RECORD_BYTES, bytes);
+        mBuffer.putInt(offset + RECORD_RUN, run);
+        mBuffer.putInt(offset + RECORD_EXIT_CODE, exitCode);
+        mBuffer.put(offset + RECORD_PHASE, (byte) phase);
+        mBuffer.put(offset + RECORD_ATTEMPT, (byte) Math.min(attempt, Byte.MAX_VALUE));
+        mBuffer.put(offset + RECORD_ENTRY, (byte) Math.min(entry, Byte.MAX_VALUE));
+        mBuffer.putLong(offset, sequence);
+        mBuffer.putLong(HEADER_NEXT_SEQUENCE, mNextSequence);
+    }
+
+    /**
+     * Writes the records to storage
+     */
+    public synchronized void sync() {
+        mBuffer.force();
+    }
+
+    /**
+     * Syncs and closes the file. The recorder must not be used afterwards.
+     */
+    public synchronized void close() {
+        mBuffer.force();
+        try { mFile.close(); } catch (Exception ignored) {}
+    }
+
+    /**
+     * Decodes the records of the given runs
+     *
+     * @param maxRuns number of most recent runs to return
+     * @return records of the runs in the order they were written, empty if the file does not
+     * exist or is not a recorder file
+     */
+    public static List<Record> read(final File file, final int maxRuns) throws IOException {
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < HEADER_SIZE) {
+                return Collections.emptyList();
+            }
+            final ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length());
+            final int capacity = buffer.getInt(HEADER_CAPACITY);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || in.length() != HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                return Collections.emptyList();
+            }
+            final long next = buffer.getLong(HEADER_NEXT_SEQUENCE);
+            final int lastRun = buffer.getInt(HEADER_RUN_COUNT);
+            final int firstRun = lastRun - maxRuns + 1;
+
+            final List<Record> records = new ArrayList<>();
+            for (long sequence = Math.max(1, next - capacity); sequence < next; sequence++) {
+                final int offset = HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+                if (buffer.getLong(offset) != sequence) {
+                    // Torn or never written
+                    continue;
+                }
+                final int run = buffer.getInt(offset + RECORD_RUN);
+                if (run < firstRun) {
+                    continue;
+                }
+                records.add(new Record(sequence,
+                        buffer.getLong(offset + RECORD_TIME),
+                        buffer.getLong(offset + RECORD_DURATION),
+                        buffer.getLong(offset + RECORD_BYTES),
+                        run,
+                        buffer.getInt(offset + RECORD_EXIT_CODE),
+                        buffer.get(offset + RECORD_PHASE),
+                        buffer.get(offset + RECORD_ENTRY),
+                        buffer.get(offset + RECORD_ATTEMPT)));
+            }
+            return records;
+        } finally {
+            try { in.close(); } catch (Exception ignored) {}
+        }
+    }
+
+    private static boolean hasHeader(final RandomAccessFile file, final int capacity)
+            throws IOException {
+        file.seek(0);
+        return file.readInt() == MAGIC
+                && file.readInt() == VERSION
+                && file.readInt() == capacity;
+    }
+
+    /**
+     * @return name of the phase for display
+     */
+    public static String phaseName(final int phase) {
+        switch (phase) {
+            case PHASE_SURPRISE:
+                return "surprise";
+
+            case PHASE_UPGRADE:
+                return "upgrade";
+
+            case PHASE_SPAWN:
+                return "spawn";
+
+            case PHASE_REMOUNT_RW:
+                return "remount rw";
+
+            case PHASE_COPY:
+                return "copy";
+
+            case PHASE_CHMOD:
+                return "chmod";
+
+            case PHASE_REMOUNT_RO:
+                return "remount ro";
+
+            case PHASE_VERIFY:
+                return "verify";
+
+            case PHASE_WRITABLE:
+                return "writable";
+
+            case PHASE_RESTORE:
+                return "restore";
+
+            case PHASE_BOOT_WAIT:
+                return "boot wait";
+
+            case PHASE_SINCE_BOOT:
+                return "since boot";
+
+            case PHASE_CHECK_COPY:
+                return "copy check";
+
+            default:
+                return "phase " + phase;
+        }
+    }
+
+    /**
+     * Decoded record
+     */
+    public static final class Record {
+
+        public final long sequence;
+
+        /**
+         * Wall clock time the phase ended at
+         */
+        public final long timeMillis;
+
+        public final long durationNanos;
+        public final long bytes;
+        public final int run;
+        public final int exitCode;
+        public final int phase;
+        public final int entry;
+        public final int attempt;
+
+        Record(final long sequence,
+               final long timeMillis,
+               final long durationNanos,
+               final long bytes,
+               final int run,
+               final int exitCode,
+               final int phase,
+               final int entry,
+               final int attempt) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.durationNanos = durationNanos;
+            this.bytes = bytes;
+            this.run = run;
+            this.exitCode = exitCode;
+            this.phase = phase;
+            this.entry = entry;
+            this.attempt = attempt;
+        }
+
+        /**
+         * @return true for the record summing up a run, which is written last
+         */
+        public boolean isRun() {
+            return phase == PHASE_SURPRISE || phase == PHASE_UPGRADE || phase == PHASE_RESTORE;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder(64)
+                    .append(phaseName(phase));
+            if (entry != ENTRY_NONE) {
+                sb.append(" [").append(entry).append(']');
+            }
+            sb.append(" #").append(attempt)
+                    .append(": ").append(durationNanos / 1000000L).append(" ms");
+            if (bytes != 0) {
+                sb.append(", ").append(bytes).append(" bytes");
+            }
+            if (exitCode != 0) {
+                sb.append(", exit ").append(exitCode);
+            }
+            return sb.toString();
+        }
+    }
+}
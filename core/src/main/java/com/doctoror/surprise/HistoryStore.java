@@ -0,0 +1,438 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-addressed store of previous versions of files, so that a known-good su can be put
+ * back after an upgrade turned out broken.
+ * <p>
+ * Each distinct content is kept once, gzipped in a file named by its SHA-1. The index is a
+ * text file with a line per version, read on first use. When the stored versions take more
+ * than the limit, the least recently used ones are evicted. A lookup that only marks a version
+ * used keeps the change in memory until {@link #flush()} or the next write. Safe for concurrent
+ * use of an instance. Keep a single instance per directory, the first lookup of an instance
+ * deletes the temporary files left in the directory, those of another instance included.
+ */
+public final class HistoryStore {
+
+    private static final String ALGORITHM = "SHA-1";
+
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_HEADER = "surprise-history 1";
+
+    private static final String OBJECT_SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File mDirectory;
+    private final File mIndex;
+    private final long mMaxBytes;
+
+    /**
+     * Versions by hash
+     */
+    private final Map<String, Version> mVersions = new HashMap<>();
+
+    private boolean mLoaded;
+
+    /**
+     * True if the index on disk lacks access times that are kept in memory
+     */
+    private boolean mDirty;
+
+    /**
+     * @param directory where the versions and the index are kept, created on first write
+     * @param maxBytes  limit of the compressed size of all versions. The most recently stored
+     *                  version is kept even if it alone exceeds the limit.
+     */
+    public HistoryStore(final File directory, final long maxBytes) {
+        mDirectory = directory;
+        mIndex = new File(directory, INDEX_FILE);
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Stores the content of the file unless it is stored already. Reads the file only if the
+     * hash is not known or not stored.
+     *
+     * @param hash hex encoded SHA-1 of the content if known, e.g. from {@link FingerprintCache},
+     *             or null
+     * @return the stored version
+     */
+    public Version put(final File file, final String hash) throws IOException {
+        synchronized (this) {
+            load();
+            final Version stored = hash != null ? mVersions.get(hash) : null;
+            if (stored != null) {
+                return touch(stored);
+            }
+        }
+
+        // Compressed without the lock, so that lookups are served meanwhile
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        final File temp = File.createTempFile("put", TEMP_SUFFIX, mDirectory);
+        final String actual;
+        final long size;
+        try {
+            final MessageDigest digest = newDigest();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long read = 0;
+            InputStream in = null;
+            FileOutputStream out = null;
+            try {
+                in = new FileInputStream(file);
+                out = new FileOutputStream(temp);
+                final GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                    gzip.write(buffer, 0, count);
+                    read += count;
+                }
+                gzip.finish();
+                out.getFD().sync();
+            } finally {
+                if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+                if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+            }
+            actual = FingerprintCache.toHex(digest.digest());
+            size = read;
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            load();
+            final Version stored = mVersions.get(actual);
+            if (stored != null) {
+                // The file changed since it was fingerprinted or was stored meanwhile
+                temp.delete();
+                return touch(stored);
+            }
+            final File object = objectFile(actual);
+            if (!temp.renameTo(object)) {
+                temp.delete();
+                throw new IOException("Failed to rename " + temp + " to " + object);
+            }
+            final long now = System.currentTimeMillis();
+            final Version version = new Version(actual, file.getAbsolutePath(), size,
+                    object.length(), now, now);
+            mVersions.put(actual, version);
+            evict(actual);
+            save();
+            return version;
+        }
+    }
+
+    /**
+     * Decompresses a version and checks its hash
+     *
+     * @param destination file to write, replaced if it exists
+     * @return the version
+     * @throws IOException if the version is not stored, or is corrupt, in which case it is
+     *                     removed
+     */
+    public Version extract(final String hash, final File destination) throws IOException {
+        final Version version;
+        synchronized (this) {
+            load();
+            version = mVersions.get(hash);
+        }
+        if (version == null) {
+            throw new IOException("Not stored: " + hash);
+        }
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(objectFile(hash));
+            // Assigned first, so that the file is closed if the header can not be read
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+            out = new FileOutputStream(destination);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+            out.getFD().sync();
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+            if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+        }
+        if (!hash.equals(FingerprintCache.toHex(digest.digest()))) {
+            destination.delete();
+            synchronized (this) {
+                remove(hash);
+                save();
+            }
+            throw new IOException("Corrupt version removed: " + hash);
+        }
+        synchronized (this) {
+            return touch(version);
+        }
+    }
+
+    /**
+     * @return the stored version with the hash or null
+     */
+    public synchronized Version get(final String hash) {
+        load();
+        return mVersions.get(hash);
+    }
+
+    /**
+     * @return the stored versions, the most recently added first
+     */
+    public synchronized List<Version> getVersions() {
+        load();
+        final List<Version> versions = new ArrayList<>(mVersions.values());
+        Collections.sort(versions, new Comparator<Version>() {
+
+            @Override
+            public int compare(final Version lhs, final Version rhs) {
+                return lhs.addedMillis < rhs.addedMillis ? 1
+                        : (lhs.addedMillis == rhs.addedMillis ? 0 : -1);
+            }
+        });
+        return versions;
+    }
+
+    /**
+     * @return compressed size of all versions
+     */
+    public synchronized long getStoredBytes() {
+        load();
+        long total = 0;
+        for (final Version version : mVersions.values()) {
+            total += version.storedSize;
+        }
+        return total;
+    }
+
+    /**
+     * Saves the index if a version was marked used since it was last saved
+     */
+    public synchronized void flush() throws IOException {
+        if (mDirty) {
+            save();
+        }
+    }
+
+    private File objectFile(final String hash) {
+        return new File(mDirectory, hash + OBJECT_SUFFIX);
+    }
+
+    /**
+     * Marks the version used now. The index is saved later, losing an access time only makes
+     * the version a bit more likely to be evicted.
+     */
+    private Version touch(final Version version) {
+        final Version touched = new Version(version.hash, version.path, version.size,
+                version.storedSize, version.addedMillis, System.currentTimeMillis());
+        mVersions.put(version.hash, touched);
+        mDirty = true;
+        return touched;
+    }
+
+    private void remove(final String hash) {
+        mVersions.remove(hash);
+        objectFile(hash).delete();
+    }
+
+    /**
+     * Removes the least recently used versions until the rest fit the limit
+     *
+     * @param keep hash of the version that is never evicted
+     */
+    private void evict(final String keep) {
+        long total = 0;
+        for (final Version version : mVersions.values()) {
+            total += version.storedSize;
+        }
+        while (total > mMaxBytes) {
+            Version oldest = null;
+            for (final Version version : mVersions.values()) {
+                if (!version.hash.equals(keep)
+                        && (oldest == null || version.lastUsedMillis < oldest.lastUsedMillis)) {
+                    oldest = version;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            remove(oldest.hash);
+            total -= oldest.storedSize;
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        // Left by a process that died while storing
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        if (!mIndex.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mIndex));
+            if (!INDEX_HEADER.equals(reader.readLine())) {
+                // Starts empty, the objects are orphaned but harmless
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final Version version = Version.decode(line);
+                if (version != null && objectFile(version.hash).isFile()) {
+                    mVersions.put(version.hash, version);
+                }
+            }
+        } catch (IOException e) {
+            // Keeps what was read, the rest is stored again on the next put
+        } finally {
+            if (reader != null) { try { reader.close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    private void save() throws IOException {
+        final StringBuilder index = new StringBuilder(INDEX_HEADER).append('\n');
+        for (final Version version : mVersions.values()) {
+            index.append(version.encode()).append('\n');
+        }
+        // Replaced with a rename so that a crash never leaves a partial file
+        final File temp = new File(mIndex.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            final Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(index.toString());
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+        }
+        if (!temp.renameTo(mIndex)) {
+            throw new IOException("Failed to rename " + temp + " to " + mIndex);
+        }
+        mDirty = false;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(ALGORITHM + " is not available");
+        }
+    }
+
+    /**
+     * Stored version of a file
+     */
+    public static final class Version {
+
+        /**
+         * Hex encoded SHA-1 of the content
+         */
+        public final String hash;
+
+        /**
+         * Path the content was first stored from
+         */
+        public final String path;
+
+        public final long size;
+
+        /**
+         * Compressed size
+         */
+        public final long storedSize;
+
+        public final long addedMillis;
+        public final long lastUsedMillis;
+
+        Version(final String hash,
+                final String path,
+                final long size,
+                final long storedSize,
+                final long addedMillis,
+                final long lastUsedMillis) {
+            this.hash = hash;
+            this.path = path;
+            this.size = size;
+            this.storedSize = storedSize;
+            this.addedMillis = addedMillis;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+
+        String encode() {
+            // The path goes last, it may contain spaces
+            return hash + " " + size + " " + storedSize + " " + addedMillis + " "
+                    + lastUsedMillis + " " + path;
+        }
+
+        static Version decode(final String line) {
+            final String[] fields = line.split(" ", 6);
+            if (fields.length != 6) {
+                return null;
+            }
+            try {
+                return new Version(fields[0], fields[5], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return encode();
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single worker job queue that coalesces duplicate work.
+ * <p>
+ * A job submitted while a job with the same key is pending is merged into the pending one.
+ * A job submitted while an equal job is running joins it. In both cases the submitter gets
+ * the shared {@link Ticket}. The worker drains all pending jobs at once and runs them as a
+ * batch, so the {@link Callbacks} can share setup such as a root session between them.
+ *
+ * @param <J> job type
+ * @param <R> job result type
+ */
+public final class JobExecutor<J extends JobExecutor.Job<J>, R> {
+
+    public interface Job<J> {
+
+        /**
+         * @return key of the work done by this job. Pending jobs with equal keys are merged.
+         */
+        Object getKey();
+
+        /**
+         * @return a job doing the work of both this job and the other job with the same key
+         */
+        J mergeWith(J other);
+    }
+
+    /**
+     * Called on the worker thread
+     */
+    public interface Callbacks<J, R> {
+
+        void onBatchStarted(List<J> jobs);
+
+        R run(J job);
+
+        void onBatchFinished(List<J> jobs);
+
+        /**
+         * Called when the queue is drained. A job may be submitted concurrently, so check
+         * {@link #isIdle()} under the same lock that guards submitting.
+         */
+        void onIdle();
+    }
+
+    private final Object mLock = new Object();
+
+    private final Callbacks<J, R> mCallbacks;
+
+    private final LinkedHashMap<Object, Entry<J, R>> mPending = new LinkedHashMap<>();
+    private final Map<Object, Entry<J, R>> mRunning = new HashMap<>();
+    private final Stats mStats = new Stats();
+
+    private Thread mWorker;
+
+    public JobExecutor(final Callbacks<J, R> callbacks) {
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * @return ticket for the result, shared with coalesced submissions
+     */
+    public Ticket<R> submit(final J job) {
+        synchronized (mLock) {
+            mStats.submitted++;
+            final Object key = job.getKey();
+
+            final Entry<J, R> running = mRunning.get(key);
+            if (running != null && running.job.mergeWith(job).equals(running.job)) {
+                mStats.joined++;
+                return running.ticket;
+            }
+
+            final Entry<J, R> pending = mPending.get(key);
+            if (pending != null) {
+                pending.job = pending.job.mergeWith(job);
+                mStats.coalesced++;
+                return pending.ticket;
+            }
+
+            final Entry<J, R> entry = new Entry<>(job);
+            mPending.put(key, entry);
+            if (mPending.size() > mStats.maxQueueDepth) {
+                mStats.maxQueueDepth = mPending.size();
+            }
+            if (mWorker == null) {
+                mWorker = new Worker();
+                mWorker.start();
+            }
+            return entry.ticket;
+        }
+    }
+
+    /**
+     * @return true if nothing is pending or running
+     */
+    public boolean isIdle() {
+        synchronized (mLock) {
+            return mWorker == null;
+        }
+    }
+
+    /**
+     * @return number of pending jobs
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * @return copy of the counters, safe to read from any thread
+     */
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(mStats);
+        }
+    }
+
+    private final class Worker extends Thread {
+
+        Worker() {
+            super("JobExecutor");
+        }
+
+        @Override
+        public void run() {
+            final List<Entry<J, R>> entries = new ArrayList<>();
+            final List<J> jobs = new ArrayList<>();
+            while (true) {
+                entries.clear();
+                jobs.clear();
+                synchronized (mLock) {
+                    if (mPending.isEmpty()) {
+                        mWorker = null;
+                        break;
+                    }
+                    final long now = System.nanoTime();
+                    for (final Entry<J, R> entry : mPending.values()) {
+                        final long wait = now - entry.submitTime;
+                        mStats.waitNanos += wait;
+                        if (wait > mStats.maxWaitNanos) {
+                            mStats.maxWaitNanos = wait;
+                        }
+                        mRunning.put(entry.job.getKey(), entry);
+                        entries.add(entry);
+                        jobs.add(entry.job);
+                    }
+                    mPending.clear();
+                    mStats.batches++;
+                }
+
+                mCallbacks.onBatchStarted(jobs);
+                for (final Entry<J, R> entry : entries) {
+                    R result = null;
+                    try {
+                        result = mCallbacks.run(entry.job);
+                    } finally {
+                        synchronized (mLock) {
+                            mRunning.remove(entry.job.getKey());
+                            mStats.executed++;
+                        }
+                        entry.ticket.complete(result);
+                    }
+                }
+                mCallbacks.onBatchFinished(jobs);
+            }
+            mCallbacks.onIdle();
+        }
+    }
+
+    private static final class Entry<J, R> {
+
+        final Ticket<R> ticket = new Ticket<>();
+        final long submitTime = System.nanoTime();
+
+        J job;
+
+        Entry(final J job) {
+            this.job = job;
+        }
+    }
+
+    /**
+     * Result of a submitted job, shared by coalesced submissions
+     */
+    public static final class Ticket<R> {
+
+        private R mResult;
+        private boolean mDone;
+        private List<Runnable> mListeners;
+
+        void complete(final R result) {
+            final List<Runnable> listeners;
+            synchronized (this) {
+                mResult = result;
+                mDone = true;
+                listeners = mListeners;
+                mListeners = null;
+                notifyAll();
+            }
+            if (listeners != null) {
+                for (final Runnable listener : listeners) {
+                    listener.run();
+                }
+            }
+        }
+
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * Runs the listener on the worker thread when the job finishes, or right away if it
+         * already has
+         */
+        public void whenDone(final Runnable listener) {
+            synchronized (this) {
+                if (!mDone) {
+                    if (mListeners == null) {
+                        mListeners = new ArrayList<>(2);
+                    }
+                    mListeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        /**
+         * Blocks until the job finishes
+         */
+        public synchronized R await() throws InterruptedException {
+            while (!mDone) {
+                wait();
+            }
+            return mResult;
+        }
+    }
+
+    /**
+     * Queue counters. Guarded by the executor lock.
+     */
+    public static final class Stats {
+
+        /**
+         * Jobs submitted, including coalesced ones
+         */
+        public int submitted;
+
+        /**
+         * Jobs merged into a pending job
+         */
+        public int coalesced;
+
+        /**
+         * Jobs that joined an equal running job
+         */
+        public int joined;
+
+        /**
+         * Jobs actually run
+         */
+        public int executed;
+
+        /**
+         * Times the worker drained the queue
+         */
+        public int batches;
+
+        public int maxQueueDepth;
+
+        /**
+         * Total time jobs spent pending before they started
+         */
+        public long waitNanos;
+
+        public long maxWaitNanos;
+
+        public Stats() {
+        }
+
+        Stats(final Stats other) {
+            submitted = other.submitted;
+            coalesced = other.coalesced;
+            joined = other.joined;
+            executed = other.executed;
+            batches = other.batches;
+            maxQueueDepth = other.maxQueueDepth;
+            waitNanos = other.waitNanos;
+            maxWaitNanos = other.maxWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted
+                    + ", coalesced=" + coalesced
+                    + ", joined=" + joined
+                    + ", executed=" + executed
+                    + ", batches=" + batches
+                    + ", maxQueueDepth=" + maxQueueDepth
+                    + ", avgWaitMs=" + (executed == 0 ? 0 : waitNanos / executed / 1000000L)
+                    + ", maxWaitMs=" + maxWaitNanos / 1000000L;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named counters and histograms for runtime introspection.
+ * <p>
+ * Metrics are looked up by name once and then updated through the returned object, which is
+ * lock-free and does not allocate. Counters are striped by thread, so that concurrent updates
+ * do not contend for one cache line. Histograms have fixed log-linear buckets, 8 per power of
+ * two, so percentiles are within 12.5% of the exact value.
+ */
+public final class MetricsRegistry {
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    /**
+     * @return the counter with the name, created on first use
+     */
+    public Counter counter(final String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histogram of durations in nanoseconds with the name, created on first use
+     */
+    public Histogram timer(final String name) {
+        return histogram(name, true);
+    }
+
+    /**
+     * @return the histogram of plain values, i.e. sizes, with the name, created on first use
+     */
+    public Histogram histogram(final String name) {
+        return histogram(name, false);
+    }
+
+    private Histogram histogram(final String name, final boolean nanos) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            final Histogram created = new Histogram(nanos);
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Prints every metric, sorted by name. Values are read without stopping updates, so a
+     * snapshot may be slightly inconsistent.
+     */
+    public void dump(final PrintWriter writer, final String prefix) {
+        writer.print(prefix);
+        writer.println("Counters:");
+        for (final Map.Entry<String, Counter> entry
+                : new TreeMap<>(mCounters).entrySet()) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(entry.getKey());
+            writer.print(": ");
+            writer.println(entry.getValue().get());
+        }
+        writer.print(prefix);
+        writer.println("Histograms (count, p50, p95, p99, max):");
+        for (final Map.Entry<String, Histogram> entry
+                : new TreeMap<>(mHistograms).entrySet()) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(entry.getKey());
+            writer.print(": ");
+            writer.println(entry.getValue());
+        }
+    }
+
+    /**
+     * Sum striped by thread
+     */
+    public static final class Counter {
+
+        /**
+         * Longs between stripes, so that each has its own 64 byte cache line
+         */
+        private static final int STRIDE = 8;
+
+        private final int mStripeMask;
+        private final AtomicLongArray mStripes;
+
+        Counter() {
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+                stripes <<= 1;
+            }
+            mStripeMask = stripes - 1;
+            mStripes = new AtomicLongArray(stripes * STRIDE);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(final long delta) {
+            final int stripe = (int) Thread.currentThread().getId() & mStripeMask;
+            mStripes.addAndGet(stripe * STRIDE, delta);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < mStripes.length(); i += STRIDE) {
+                sum += mStripes.get(i);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Distribution of non-negative values
+     */
+    public static final class Histogram {
+
+        /**
+         * Buckets per power of two, as a power of two
+         */
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        /**
+         * Values below this have a bucket each
+         */
+        private static final long LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        /*
+         * Slots of mStats
+         */
+        private static final int STAT_COUNT = 0;
+        private static final int STAT_SUM = 8;
+        private static final int STAT_MAX = 16;
+
+        private final boolean mNanos;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Count, sum and max, each on its own cache line
+         */
+        private final AtomicLongArray mStats = new AtomicLongArray(24);
+
+        Histogram(final boolean nanos) {
+            mNanos = nanos;
+        }
+
+        /**
+         * @param value negative values are counted as 0
+         */
+        public void record(final long value) {
+            final long v = Math.max(0, value);
+            mBuckets.incrementAndGet(bucket(v));
+            mStats.incrementAndGet(STAT_COUNT);
+            mStats.addAndGet(STAT_SUM, v);
+            long max;
+            do {
+                max = mStats.get(STAT_MAX);
+            } while (v > max && !mStats.compareAndSet(STAT_MAX, max, v));
+        }
+
+        public long getCount() {
+            return mStats.get(STAT_COUNT);
+        }
+
+        public long getMax() {
+            return mStats.get(STAT_MAX);
+        }
+
+        /**
+         * @return mean value or 0 if nothing was recorded
+         */
+        public long getMean() {
+            final long count = getCount();
+            return count == 0 ? 0 : mStats.get(STAT_SUM) / count;
+        }
+
+        /**
+         * @param quantile from 0 to 1, i.e. 0.99 for p99
+         * @return the upper bound of the bucket the quantile falls in, at most the maximum, or
+         * 0 if nothing was recorded
+         */
+        public long getQuantile(final double quantile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += mBuckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Values below {@link #LINEAR_LIMIT} map to themselves. Above, the exponent picks the
+         * group and the next {@link #SUB_BITS} bits below the highest one the bucket in it.
+         */
+        static int bucket(final long value) {
+            if (value < LINEAR_LIMIT) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return the largest value of the bucket
+         */
+        static long upperBound(final int bucket) {
+            if (bucket < LINEAR_LIMIT) {
+                return bucket;
+            }
+            final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            final long sub = bucket & (SUB_BUCKETS - 1);
+            final long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        private String format(final long value) {
+            return mNanos ? String.format("%.2fms", value / 1e6) : Long.toString(value);
+        }
+
+        @Override
+        public String toString() {
+            return getCount() + ", " + format(getQuantile(0.50)) + ", "
+                    + format(getQuantile(0.95)) + ", " + format(getQuantile(0.99)) + ", "
+                    + format(getMax());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Tracks whether a mount point is mounted read-only or read-write.
+ * <p>
+ * The state is parsed from /proc/mounts in a single streaming pass over a reused buffer and
+ * cached until {@link #invalidate()} is called, which should be done after every remount.
+ */
+public final class MountTracker {
+
+    public static final String PROC_MOUNTS = "/proc/mounts";
+
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_NOT_MOUNTED = 1;
+    public static final int STATE_READ_ONLY = 2;
+    public static final int STATE_READ_WRITE = 3;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /*
+     * Fields of a /proc/mounts line
+     */
+    private static final int FIELD_MOUNT_POINT = 1;
+    private static final int FIELD_OPTIONS = 3;
+
+    private final String mMountsPath;
+    private final String mMountPointName;
+    private final byte[] mMountPoint;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    private int mState = STATE_UNKNOWN;
+    private boolean mValid;
+
+    private int mParseCount;
+
+    /**
+     * @param mountsPath path to the mount table, normally {@link #PROC_MOUNTS}
+     * @param mountPoint mount point to track, i.e. "/system"
+     */
+    public MountTracker(final String mountsPath, final String mountPoint) {
+        mMountsPath = mountsPath;
+        mMountPointName = mountPoint;
+        mMountPoint = mountPoint.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * @return cached state, parsing the mount table if the cache was invalidated
+     */
+    public synchronized int getState() {
+        if (!mValid) {
+            mState = parse();
+            mValid = true;
+        }
+        return mState;
+    }
+
+    /**
+     * Drops the cached state. The next {@link #getState()} parses the mount table.
+     */
+    public synchronized void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * @return number of times the mount table was parsed
+     */
+    public synchronized int getParseCount() {
+        return mParseCount;
+    }
+
+    private int parse() {
+        mParseCount++;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mMountsPath);
+
+            int state = STATE_NOT_MOUNTED;
+            int field = 0;
+            // Bytes of the mount point matched in the current line, -1 on mismatch
+            int matched = 0;
+            // Only the first option matters, it is always "ro" or "rw"
+            int optionLength = 0;
+            boolean optionDone = false;
+            byte option0 = 0;
+            byte option1 = 0;
+
+            int read;
+            while ((read = in.read(mBuffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    final byte b = mBuffer[i];
+                    if (b == '\n') {
+                        // The last matching line wins since later mounts hide earlier ones
+                        if (matched == mMountPoint.length && field >= FIELD_OPTIONS) {
+                            state = optionState(option0, option1, optionLength);
+                        }
+                        field = 0;
+                        matched = 0;
+                        optionLength = 0;
+                        optionDone = false;
+                    } else if (b == ' ') {
+                        if (field == FIELD_OPTIONS) {
+                            optionDone = true;
+                        }
+                        field++;
+                    } else if (field == FIELD_MOUNT_POINT) {
+                        if (matched != -1 && matched < mMountPoint.length
+                                && mMountPoint[matched] == b) {
+                            matched++;
+                        } else {
+                            matched = -1;
+                        }
+                    } else if (field == FIELD_OPTIONS && !optionDone) {
+                        if (b == ',') {
+                            optionDone = true;
+                        } else {
+                            if (optionLength == 0) {
+                                option0 = b;
+                            } else if (optionLength == 1) {
+                                option1 = b;
+                            }
+                            optionLength++;
+                        }
+                    }
+                }
+            }
+            return state;
+        } catch (IOException e) {
+            return STATE_UNKNOWN;
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    private static int optionState(final byte option0, final byte option1, final int length) {
+        if (length == 2 && option0 == 'r') {
+            if (option1 == 'o') {
+                return STATE_READ_ONLY;
+            }
+            if (option1 == 'w') {
+                return STATE_READ_WRITE;
+            }
+        }
+        return STATE_UNKNOWN;
+    }
+
+    @Override
+    public String toString() {
+        return mMountPointName;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.nio.charset.Charset;
+
+/**
+ * Fixed-size output capture that keeps the first and the last bytes written and counts
+ * the bytes dropped in between. Nothing is allocated on write; the text is decoded only
+ * by {@link #toString()}.
+ */
+public final class OutputBuffer {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final byte[] mHead;
+    private int mHeadLength;
+
+    private final byte[] mTail;
+    private int mTailPosition;
+    private long mTailWritten;
+
+    private String mDecoded;
+
+    /**
+     * @param headSize number of leading bytes to keep
+     * @param tailSize number of trailing bytes to keep
+     */
+    public OutputBuffer(final int headSize, final int tailSize) {
+        mHead = new byte[headSize];
+        mTail = new byte[tailSize];
+    }
+
+    public void write(final int b) {
+        mDecoded = null;
+        if (mHeadLength < mHead.length) {
+            mHead[mHeadLength++] = (byte) b;
+        } else if (mTail.length != 0) {
+            mTail[mTailPosition] = (byte) b;
+            mTailPosition = (mTailPosition + 1) % mTail.length;
+            mTailWritten++;
+        } else {
+            mTailWritten++;
+        }
+    }
+
+    public void write(final byte[] buffer, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        mDecoded = null;
+        final int toHead = Math.min(length, mHead.length - mHeadLength);
+        if (toHead > 0) {
+            System.arraycopy(buffer, offset, mHead, mHeadLength, toHead);
+            mHeadLength += toHead;
+            offset += toHead;
+            length -= toHead;
+        }
+        mTailWritten += length;
+        if (mTail.length == 0) {
+            return;
+        }
+        if (length > mTail.length) {
+            // Only the last bytes would survive
+            offset += length - mTail.length;
+            length = mTail.length;
+        }
+        while (length > 0) {
+            final int chunk = Math.min(length, mTail.length - mTailPosition);
+            System.arraycopy(buffer, offset, mTail, mTailPosition, chunk);
+            mTailPosition = (mTailPosition + chunk) % mTail.length;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    public void write(final String text) {
+        if (text != null) {
+            final byte[] bytes = text.getBytes(CHARSET);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * @return total number of bytes written
+     */
+    public long size() {
+        return mHeadLength + mTailWritten;
+    }
+
+    /**
+     * @return number of bytes written but not kept
+     */
+    public long dropped() {
+        return mTailWritten - Math.min(mTailWritten, mTail.length);
+    }
+
+    /**
+     * Decodes the kept bytes. Dropped bytes are replaced with a note. The trailing new line
+     * is omitted.
+     */
+    @Override
+    public String toString() {
+        if (mDecoded != null) {
+            return mDecoded;
+        }
+        final int tailLength = (int) Math.min(mTailWritten, mTail.length);
+        final byte[] bytes = new byte[mHeadLength + tailLength];
+        System.arraycopy(mHead, 0, bytes, 0, mHeadLength);
+        if (tailLength == mTail.length) {
+            // The ring is full, the oldest byte is at the write position
+            final int firstPart = mTail.length - mTailPosition;
+            System.arraycopy(mTail, mTailPosition, bytes, mHeadLength, firstPart);
+            System.arraycopy(mTail, 0, bytes, mHeadLength + firstPart, mTailPosition);
+        } else {
+            System.arraycopy(mTail, 0, bytes, mHeadLength, tailLength);
+        }
+
+        int length = bytes.length;
+        while (length > 0 && (bytes[length - 1] == '\n' || bytes[length - 1] == '\r')) {
+            length--;
+        }
+
+        final long dropped = dropped();
+        if (dropped == 0) {
+            mDecoded = new String(bytes, 0, length, CHARSET);
+        } else {
+            final int tailStart = Math.min(mHeadLength, length);
+            mDecoded = new String(bytes, 0, tailStart, CHARSET)
+                    + "\n[... " + dropped + " bytes skipped ...]\n"
+                    + new String(bytes, tailStart, length - tailStart, CHARSET);
+        }
+        return mDecoded;
+    }
+}
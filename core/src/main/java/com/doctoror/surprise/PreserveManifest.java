@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Files preserved across su upgrades, each with a backup copy.
+ * <p>
+ * One entry per line: ORIGINAL BACKUP OCTAL_MODE. Empty lines and lines starting with '#' are
+ * ignored.
+ */
+public final class PreserveManifest {
+
+    private final List<Entry> mEntries;
+
+    public PreserveManifest(final List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @return tasks copying every backup over its original
+     */
+    public List<FileCopier.Task> restoreTasks() {
+        final List<FileCopier.Task> tasks = new ArrayList<>(mEntries.size());
+        for (final Entry entry : mEntries) {
+            tasks.add(new FileCopier.Task(entry.backup, entry.original, entry.mode));
+        }
+        return tasks;
+    }
+
+    /**
+     * @return tasks copying every original over its backup
+     */
+    public List<FileCopier.Task> backupTasks() {
+        final List<FileCopier.Task> tasks = new ArrayList<>(mEntries.size());
+        for (final Entry entry : mEntries) {
+            tasks.add(new FileCopier.Task(entry.original, entry.backup, entry.mode));
+        }
+        return tasks;
+    }
+
+    /**
+     * Maps the entries to a copy of the file system mounted elsewhere, i.e. an extracted
+     * system image
+     *
+     * @param mountPoint where the file system is mounted on the device, i.e. /system
+     * @param root       directory the file system is extracted to
+     * @throws IllegalArgumentException if a path is not under the mount point
+     */
+    public PreserveManifest rebase(final String mountPoint, final File root) {
+        final List<Entry> entries = new ArrayList<>(mEntries.size());
+        for (final Entry entry : mEntries) {
+            entries.add(new Entry(rebase(entry.original, mountPoint, root),
+                    rebase(entry.backup, mountPoint, root), entry.mode));
+        }
+        return new PreserveManifest(entries);
+    }
+
+    private static File rebase(final File file, final String mountPoint, final File root) {
+        final String path = file.getPath();
+        final String prefix = mountPoint.endsWith("/") ? mountPoint : mountPoint + '/';
+        if (!path.startsWith(prefix)) {
+            throw new IllegalArgumentException(path + " is not under " + mountPoint);
+        }
+        return new File(root, path.substring(prefix.length()));
+    }
+
+    /**
+     * Reads the manifest. Does not close the stream.
+     *
+     * @throws IOException on read failure or if a line is malformed
+     */
+    public static PreserveManifest parse(final InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, Charset.forName("UTF-8")));
+        final List<Entry> entries = new ArrayList<>();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            final String[] fields = line.split("\\s+");
+            if (fields.length != 3) {
+                throw new IOException("Line " + lineNumber + ": expected ORIGINAL BACKUP MODE");
+            }
+            final int mode;
+            try {
+                mode = Integer.parseInt(fields[2], 8);
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": bad mode " + fields[2]);
+            }
+            entries.add(new Entry(new File(fields[0]), new File(fields[1]), mode));
+        }
+        return new PreserveManifest(entries);
+    }
+
+    public static final class Entry {
+
+        /**
+         * The file that upgrades may replace, i.e. /system/xbin/su
+         */
+        public final File original;
+
+        /**
+         * Copy of the original that survives upgrades
+         */
+        public final File backup;
+
+        public final int mode;
+
+        public Entry(final File original, final File backup, final int mode) {
+            this.original = original;
+            this.backup = backup;
+            this.mode = mode;
+        }
+
+        @Override
+        public String toString() {
+            return original.getPath();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RetryScheduler.Probe} implementations
+ */
+public final class ReadinessProbes {
+
+    private ReadinessProbes() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return probe that passes when the file exists and is executable
+     */
+    public static RetryScheduler.Probe executable(final File file) {
+        return new RetryScheduler.Probe() {
+
+            @Override
+            public boolean isReady() {
+                return file.isFile() && file.canExecute();
+            }
+
+            @Override
+            public String toString() {
+                return "executable " + file;
+            }
+        };
+    }
+
+    /**
+     * @return probe that passes when the tracked mount point is mounted
+     */
+    public static RetryScheduler.Probe mounted(final MountTracker tracker) {
+        return new RetryScheduler.Probe() {
+
+            @Override
+            public boolean isReady() {
+                // Mounting is not tracked, so the cached state can not be trusted here.
+                // An unreadable mount table does not block.
+                tracker.invalidate();
+                return tracker.getState() != MountTracker.STATE_NOT_MOUNTED;
+            }
+
+            @Override
+            public String toString() {
+                return "mounted " + tracker;
+            }
+        };
+    }
+
+    /**
+     * Returns a probe that passes when the shell runs a no-op command. A failed run may be a
+     * su spawn or a grant request, so after a failure the probe fails without running anything
+     * until a backoff passes. The backoff starts at the initial interval and doubles up to the
+     * maximum while the shell keeps failing.
+     *
+     * @param initialInterval backoff after the first failure, in milliseconds
+     * @param maxInterval     limit of the backoff, in milliseconds
+     */
+    public static RetryScheduler.Probe rootShell(final RootShell shell,
+                                                 final long timeoutMillis,
+                                                 final long initialInterval,
+                                                 final long maxInterval) {
+        return new RetryScheduler.Probe() {
+
+            private final long mInitialIntervalNanos =
+                    TimeUnit.MILLISECONDS.toNanos(initialInterval);
+            private final long mMaxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxInterval);
+
+            /**
+             * Backoff after the last failure, 0 if the last run passed or none was made
+             */
+            private long mIntervalNanos;
+            private long mLastRunNanos;
+
+            @Override
+            public boolean isReady() {
+                if (mIntervalNanos != 0 && System.nanoTime() - mLastRunNanos < mIntervalNanos) {
+                    return false;
+                }
+                mLastRunNanos = System.nanoTime();
+                if (shell.run(Collections.singletonList("true"), timeoutMillis).exitCode == 0) {
+                    mIntervalNanos = 0;
+                    return true;
+                }
+                mIntervalNanos = mIntervalNanos == 0 ? mInitialIntervalNanos
+                        : Math.min(mIntervalNanos * 2, mMaxIntervalNanos);
+                return false;
+            }
+
+            @Override
+            public String toString() {
+                return "root shell";
+            }
+        };
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when to make the next attempt of an operation.
+ * <p>
+ * While any readiness probe fails, the scheduler polls the probes and fires as soon as all of
+ * them pass. When the probes pass but the attempt still failed, the next one is delayed with
+ * exponential backoff and jitter. Nothing fires after the overall deadline.
+ * <p>
+ * Usage:
+ * <pre>
+ * while (scheduler.awaitAttempt()) {
+ *     if (attempt()) {
+ *         scheduler.onSuccess();
+ *         break;
+ *     }
+ * }
+ * </pre>
+ */
+public final class RetryScheduler {
+
+    /**
+     * Readiness check. Should be cheap, it is polled while waiting.
+     */
+    public interface Probe {
+
+        boolean isReady();
+    }
+
+    private final Random mRandom = new Random();
+
+    private final int mMaxAttempts;
+    private final long mInitialDelayNanos;
+    private final long mMaxDelayNanos;
+    private final long mDeadlineNanos;
+    private final long mProbeIntervalNanos;
+    private final List<Probe> mProbes;
+
+    private long mStartTime;
+    private int mAttempts;
+    private long mTimeToSuccess = -1;
+    private Probe mFailedProbe;
+
+    /**
+     * @param maxAttempts   maximum number of attempts
+     * @param initialDelay  backoff delay after the first failed attempt, in milliseconds
+     * @param maxDelay      upper limit of the backoff delay, in milliseconds
+     * @param deadline      time since the first {@link #awaitAttempt()} after which no
+     *                      attempts are made, in milliseconds
+     * @param probeInterval interval of polling the probes, in milliseconds
+     * @param probes        readiness probes, checked in order
+     */
+    public RetryScheduler(final int maxAttempts,
+                          final long initialDelay,
+                          final long maxDelay,
+                          final long deadline,
+                          final long probeInterval,
+                          final List<Probe> probes) {
+        mMaxAttempts = maxAttempts;
+        mInitialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelay);
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        mDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadline);
+        mProbeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeInterval);
+        mProbes = probes;
+    }
+
+    /**
+     * Blocks until the next attempt should be made.
+     *
+     * @return false if no more attempts should be made
+     */
+    public boolean awaitAttempt() throws InterruptedException {
+        final long now = System.nanoTime();
+        if (mAttempts == 0) {
+            mStartTime = now;
+        }
+        if (mAttempts >= mMaxAttempts || mTimeToSuccess != -1) {
+            return false;
+        }
+        final long deadline = mStartTime + mDeadlineNanos;
+
+        if (mAttempts != 0 && probesReady()) {
+            // Ready but failed anyway, back off
+            final long fireTime = now + backoffDelay(mAttempts);
+            if (fireTime >= deadline) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(fireTime - now);
+        } else {
+            while (!probesReady()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.sleep(Math.min(remaining, mProbeIntervalNanos));
+            }
+        }
+        mAttempts++;
+        return true;
+    }
+
+    /**
+     * Marks the last attempt as successful
+     */
+    public void onSuccess() {
+        mTimeToSuccess = System.nanoTime() - mStartTime;
+    }
+
+    /**
+     * @return number of attempts made
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * @return time from the first {@link #awaitAttempt()} till {@link #onSuccess()} or -1
+     */
+    public long getTimeToSuccessNanos() {
+        return mTimeToSuccess;
+    }
+
+    /**
+     * @return the probe that failed last time the probes were checked, or null
+     */
+    public Probe getFailedProbe() {
+        return mFailedProbe;
+    }
+
+    /**
+     * Equal jitter: half of the exponential delay is fixed and half is random
+     */
+    private long backoffDelay(final int failedAttempts) {
+        long delay = mInitialDelayNanos;
+        for (int i = 1; i < failedAttempts && delay < mMaxDelayNanos; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, mMaxDelayNanos);
+        final long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * half);
+    }
+
+    private boolean probesReady() {
+        for (final Probe probe : mProbes) {
+            if (!probe.isReady()) {
+                mFailedProbe = probe;
+                return false;
+            }
+        }
+        mFailedProbe = null;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "attempts=" + mAttempts
+                + ", timeToSuccessMs=" + (mTimeToSuccess == -1 ? -1 : mTimeToSuccess / 1000000L)
+                + (mFailedProbe != null ? ", notReady=" + mFailedProbe : "");
+    }
+}
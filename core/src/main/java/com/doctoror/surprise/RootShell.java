@@ -0,0 +1,547 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived root shell session.
+ * <p>
+ * The shell process is spawned on the first batch and kept open between batches, so the
+ * su spawn and the superuser manager round trip are paid once per session instead of once
+ * per batch. Every command is followed by an echoed marker line carrying its exit code, so
+ * the result tells which command failed. A dead shell is respawned transparently on the
+ * next batch.
+ * <p>
+ * Output is drained by a pump thread, so the shell never blocks on a full pipe, and every
+ * batch has a deadline. When the deadline passes the shell is killed and the result gets
+ * {@link CommandResult#EXIT_CODE_TIMEOUT}.
+ */
+public final class RootShell {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * The first character must not occur again in the marker, which keeps the streaming
+     * match in {@link Pump#consume(byte[], int)} trivial. A random suffix is added per
+     * session so that command output can not end a batch by accident.
+     */
+    private static final String MARKER_PREFIX = ":surprise_end_";
+
+    private static final int READ_BUFFER_SIZE = 2048;
+
+    /**
+     * Interval of polling for the exit code of a shell that closed its output
+     */
+    private static final long EXIT_POLL_INTERVAL = 10;
+
+    private final String mCommand;
+    private final String mMarker;
+    private final byte[] mMarkerBytes;
+
+    /**
+     * Guards the process, its stdin, the pending batch and {@link #mStats}
+     */
+    private final Object mLock = new Object();
+
+    private final Stats mStats = new Stats();
+
+    private Process mProcess;
+    private OutputStream mStdin;
+    private Batch mBatch;
+
+    /**
+     * @param command the shell binary to spawn, i.e. "su"
+     */
+    public RootShell(final String command) {
+        mCommand = command;
+        mMarker = MARKER_PREFIX + Long.toHexString(new Random().nextLong());
+        mMarkerBytes = mMarker.getBytes(CHARSET);
+    }
+
+    /**
+     * @return copy of the counters, safe to read from any thread
+     */
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(mStats);
+        }
+    }
+
+    /**
+     * Runs the commands in this session, spawning or respawning the shell if needed.
+     * Every command is executed even if a previous one fails. The result holds the exit code
+     * of each command and, as the overall exit code, the first non-zero one.
+     *
+     * @param timeoutMillis time limit for the batch, including a spawn if one is needed
+     */
+    public synchronized CommandResult run(final List<String> commands, final long timeoutMillis) {
+        final CommandResult result = new CommandResult(commands.size());
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            final boolean reused;
+            synchronized (mLock) {
+                if (mProcess != null && !isAlive(mProcess)) {
+                    destroyLocked();
+                    mStats.restartCount++;
+                }
+                reused = mProcess != null;
+            }
+            if (!reused && !spawn(result, deadline)) {
+                return result;
+            }
+
+            final Batch batch = new Batch(result.output, result.exitCodes,
+                    result.commandNanos);
+            try {
+                submit(batch, commands);
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+                // The shell died while idle, run the batch in a fresh one
+                cancel();
+                synchronized (mLock) {
+                    mStats.restartCount++;
+                }
+                if (!spawn(result, deadline)) {
+                    return result;
+                }
+                submit(batch, commands);
+            }
+            await(batch, result, deadline);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.exitCode = CommandResult.EXIT_CODE_EXCEPTION;
+            result.output.write(e.getMessage());
+            cancel();
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            synchronized (mLock) {
+                mStats.batchCount++;
+                mStats.batchNanos += elapsed;
+                if (elapsed > mStats.maxBatchNanos) {
+                    mStats.maxBatchNanos = elapsed;
+                }
+                if (result.exitCode == CommandResult.EXIT_CODE_TIMEOUT) {
+                    mStats.timeoutCount++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Asks the shell to exit and terminates the process. The next batch spawns a new one.
+     */
+    public void close() {
+        synchronized (mLock) {
+            if (mStdin != null) {
+                try {
+                    mStdin.write("exit\n".getBytes(CHARSET));
+                    mStdin.flush();
+                } catch (IOException ignored) {}
+            }
+            destroyLocked();
+        }
+    }
+
+    /**
+     * Kills the shell. A batch in progress finishes immediately with the exit code of the
+     * killed shell. May be called from any thread.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            destroyLocked();
+        }
+    }
+
+    /**
+     * Starts the shell and waits until it answers, so the time spent in su and the
+     * superuser grant is counted as spawn time.
+     *
+     * @return false if the shell failed to answer. The result is filled in this case.
+     */
+    private boolean spawn(final CommandResult result, final long deadline)
+            throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder().command(mCommand)
+                .redirectErrorStream(true).start();
+        synchronized (mLock) {
+            mProcess = process;
+            mStdin = process.getOutputStream();
+        }
+        new Pump(process).start();
+
+        final Batch handshake = new Batch(result.output, new int[1], new long[1]);
+        try {
+            submit(handshake, Collections.<String>emptyList());
+        } catch (IOException e) {
+            // The shell exited before reading anything, i.e. root was denied
+            result.exitCode = waitForExit(process, deadline);
+            if (result.exitCode == 0) {
+                result.exitCode = CommandResult.EXIT_CODE_NOT_RUN;
+            }
+            cancel();
+            return false;
+        }
+        final boolean answered = await(handshake, result, deadline);
+        final long elapsed = System.nanoTime() - start;
+        result.spawnNanos += elapsed;
+        if (!answered) {
+            if (result.exitCode == 0) {
+                // Shell exited successfully without running anything
+                result.exitCode = CommandResult.EXIT_CODE_NOT_RUN;
+            }
+            return false;
+        }
+        synchronized (mLock) {
+            mStats.spawnCount++;
+            mStats.spawnNanos += elapsed;
+        }
+        return true;
+    }
+
+    private void submit(final Batch batch, final List<String> commands) throws IOException {
+        final OutputStream stdin;
+        synchronized (mLock) {
+            if (mStdin == null) {
+                throw new IOException("Shell is closed");
+            }
+            batch.process = mProcess;
+            batch.lastMarkerTime = System.nanoTime();
+            mBatch = batch;
+            stdin = mStdin;
+        }
+        final byte[] marker = ("echo " + mMarker + " $?\n").getBytes(CHARSET);
+        if (commands.isEmpty()) {
+            stdin.write(marker);
+        }
+        for (final String command : commands) {
+            stdin.write(command.getBytes(CHARSET));
+            stdin.write('\n');
+            stdin.write(marker);
+        }
+        stdin.flush();
+    }
+
+    /**
+     * Waits for the batch marker until the deadline. On timeout or if the shell exits, the
+     * shell is destroyed and the result is filled with the reason.
+     *
+     * @return true if the marker was received
+     */
+    private boolean await(final Batch batch,
+                          final CommandResult result,
+                          final long deadline) throws InterruptedException {
+        synchronized (mLock) {
+            while (!batch.done) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            if (mBatch == batch) {
+                // Detach so that the pump no longer writes to the result
+                mBatch = null;
+            }
+            if (batch.done && !batch.eof) {
+                result.exitCode = firstNonZero(batch.exitCodes);
+                return true;
+            }
+            if (!batch.done) {
+                destroyLocked();
+                result.exitCode = CommandResult.EXIT_CODE_TIMEOUT;
+                if (result.output.size() != 0) {
+                    result.output.write('\n');
+                }
+                result.output.write("[timed out]");
+                return false;
+            }
+        }
+
+        // The shell closed its output in the middle of the batch. The command in progress
+        // gets the exit code of the shell.
+        final int exitValue = waitForExit(batch.process, deadline);
+        if (batch.received < batch.exitCodes.length) {
+            batch.exitCodes[batch.received] = exitValue;
+            batch.commandNanos[batch.received] = System.nanoTime() - batch.lastMarkerTime;
+        }
+        result.exitCode = firstNonZero(batch.exitCodes);
+        cancel();
+        return false;
+    }
+
+    private static int firstNonZero(final int[] exitCodes) {
+        for (final int exitCode : exitCodes) {
+            if (exitCode != 0) {
+                return exitCode;
+            }
+        }
+        return 0;
+    }
+
+    private static int waitForExit(final Process process, final long deadline)
+            throws InterruptedException {
+        while (true) {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                if (System.nanoTime() >= deadline) {
+                    return CommandResult.EXIT_CODE_TIMEOUT;
+                }
+                Thread.sleep(EXIT_POLL_INTERVAL);
+            }
+        }
+    }
+
+    private static boolean isAlive(final Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private void destroyLocked() {
+        if (mStdin != null) { try { mStdin.close(); } catch (Exception ignored) {} }
+        if (mProcess != null) { try { mProcess.destroy(); } catch (Exception ignored) {} }
+        if (mBatch != null) {
+            mBatch.eof = true;
+            mBatch.done = true;
+            mBatch = null;
+            mLock.notifyAll();
+        }
+        mStdin = null;
+        mProcess = null;
+    }
+
+    /**
+     * Batch waiting for its markers, one per command. Guarded by {@link #mLock}.
+     */
+    private static final class Batch {
+
+        final OutputBuffer output;
+        final int[] exitCodes;
+        final long[] commandNanos;
+
+        Process process;
+
+        int received;
+        long lastMarkerTime;
+        boolean done;
+        boolean eof;
+
+        Batch(final OutputBuffer output, final int[] exitCodes, final long[] commandNanos) {
+            this.output = output;
+            this.exitCodes = exitCodes;
+            this.commandNanos = commandNanos;
+        }
+    }
+
+    /**
+     * Drains the shell output into the pending batch and completes it on the marker
+     */
+    private final class Pump extends Thread {
+
+        private final Process mPumpedProcess;
+
+        private int mMatched;
+        private int mExitCode = -1;
+
+        Pump(final Process process) {
+            super("RootShell pump");
+            setDaemon(true);
+            mPumpedProcess = process;
+        }
+
+        @Override
+        public void run() {
+            final InputStream input = mPumpedProcess.getInputStream();
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+            try {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    synchronized (mLock) {
+                        consume(buffer, read);
+                    }
+                }
+            } catch (IOException ignored) {
+                // Stream closed by destroy()
+            } finally {
+                try { input.close(); } catch (IOException ignored) {}
+            }
+
+            synchronized (mLock) {
+                final Batch batch = currentBatch();
+                if (batch != null) {
+                    batch.output.write(mMarkerBytes, 0, mMatched);
+                    batch.eof = true;
+                    batch.done = true;
+                    mBatch = null;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Bytes that may start the marker are held back until they either complete it or
+         * turn out to be output.
+         */
+        private void consume(final byte[] buffer, final int length) {
+            for (int i = 0; i < length; i++) {
+                final byte b = buffer[i];
+                if (mExitCode != -1) {
+                    // Marker matched, parsing " <exit code>\n"
+                    if (b == '\n') {
+                        final Batch batch = currentBatch();
+                        if (batch != null) {
+                            final long now = System.nanoTime();
+                            batch.commandNanos[batch.received] = now - batch.lastMarkerTime;
+                            batch.lastMarkerTime = now;
+                            batch.exitCodes[batch.received++] = mExitCode;
+                            if (batch.received == batch.exitCodes.length) {
+                                batch.done = true;
+                                mBatch = null;
+                                mLock.notifyAll();
+                            }
+                        }
+                        mExitCode = -1;
+                    } else if (b >= '0' && b <= '9') {
+                        mExitCode = mExitCode * 10 + (b - '0');
+                    }
+                    continue;
+                }
+
+                if (b == mMarkerBytes[mMatched]) {
+                    mMatched++;
+                    if (mMatched == mMarkerBytes.length) {
+                        mMatched = 0;
+                        mExitCode = 0;
+                    }
+                } else {
+                    if (mMatched != 0) {
+                        final Batch batch = currentBatch();
+                        if (batch != null) {
+                            batch.output.write(mMarkerBytes, 0, mMatched);
+                        }
+                        mMatched = 0;
+                    }
+                    if (b == mMarkerBytes[0]) {
+                        mMatched = 1;
+                    } else {
+                        final Batch batch = currentBatch();
+                        if (batch != null) {
+                            batch.output.write(b);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the pending batch unless it belongs to a newer process
+         */
+        private Batch currentBatch() {
+            return mBatch != null && mBatch.process == mPumpedProcess ? mBatch : null;
+        }
+    }
+
+    /**
+     * Session timing counters. Guarded by the session lock.
+     */
+    public static final class Stats {
+
+        /**
+         * Shell processes spawned successfully
+         */
+        public int spawnCount;
+
+        /**
+         * Shells found dead on reuse and respawned
+         */
+        public int restartCount;
+
+        /**
+         * Batches executed, including failed ones
+         */
+        public int batchCount;
+
+        /**
+         * Batches killed by the deadline
+         */
+        public int timeoutCount;
+
+        /**
+         * Total time from process start till the first answer of the shell
+         */
+        public long spawnNanos;
+
+        /**
+         * Total time spent in batches, including spawns
+         */
+        public long batchNanos;
+
+        /**
+         * Longest batch, including spawn
+         */
+        public long maxBatchNanos;
+
+        public Stats() {
+        }
+
+        Stats(final Stats other) {
+            spawnCount = other.spawnCount;
+            restartCount = other.restartCount;
+            batchCount = other.batchCount;
+            timeoutCount = other.timeoutCount;
+            spawnNanos = other.spawnNanos;
+            batchNanos = other.batchNanos;
+            maxBatchNanos = other.maxBatchNanos;
+        }
+
+        /**
+         * @return estimated time saved by reusing the session instead of spawning per batch
+         */
+        public long savedNanos() {
+            if (spawnCount == 0 || batchCount <= spawnCount) {
+                return 0;
+            }
+            return (batchCount - spawnCount) * (spawnNanos / spawnCount);
+        }
+
+        @Override
+        public String toString() {
+            return "spawns=" + spawnCount
+                    + ", restarts=" + restartCount
+                    + ", batches=" + batchCount
+                    + ", timeouts=" + timeoutCount
+                    + ", spawnMs=" + spawnNanos / 1000000L
+                    + ", batchMs=" + batchNanos / 1000000L
+                    + ", maxBatchMs=" + maxBatchNanos / 1000000L
+                    + ", savedMs=" + savedNanos() / 1000000L;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.util.Locale;
+
+/**
+ * Result of a run as sent to the telemetry collector, one JSON object per line:
+ * <pre>
+ * {"time":1418000000000,"device":"LGE Nexus 5","sdk":21,"operation":"surprise",
+ *  "fromUser":false,"exitCode":1,"attempts":3,"durationMs":5120,"uptimeMs":41200,
+ *  "bytes":0,"output":"mount: Operation not permitted"}
+ * </pre>
+ */
+public final class RunReport {
+
+    /**
+     * Characters of the output kept, the start of it usually tells what went wrong
+     */
+    public static final int OUTPUT_LIMIT = 256;
+
+    /**
+     * Wall clock time the run ended at
+     */
+    public final long timeMillis;
+
+    public final String device;
+    public final int sdk;
+
+    /**
+     * {@link FlightRecorder#phaseName(int)} of the run phase
+     */
+    public final String operation;
+
+    public final boolean fromUser;
+    public final int exitCode;
+    public final int attempts;
+    public final long durationMillis;
+
+    /**
+     * Time since boot the run ended at
+     */
+    public final long uptimeMillis;
+
+    public final long bytes;
+
+    /**
+     * Output truncated to {@link #OUTPUT_LIMIT}, empty if none
+     */
+    public final String output;
+
+    public RunReport(final long timeMillis,
+                     final String device,
+                     final int sdk,
+                     final String operation,
+                     final boolean fromUser,
+                     final int exitCode,
+                     final int attempts,
+                     final long durationMillis,
+                     final long uptimeMillis,
+                     final long bytes,
+                     final String output) {
+        this.timeMillis = timeMillis;
+        this.device = device;
+        this.sdk = sdk;
+        this.operation = operation;
+        this.fromUser = fromUser;
+        this.exitCode = exitCode;
+        this.attempts = attempts;
+        this.durationMillis = durationMillis;
+        this.uptimeMillis = uptimeMillis;
+        this.bytes = bytes;
+        this.output = truncate(output);
+    }
+
+    private static String truncate(final String output) {
+        if (output == null) {
+            return "";
+        }
+        if (output.length() <= OUTPUT_LIMIT) {
+            return output;
+        }
+        // Does not split a surrogate pair
+        return output.substring(0, Character.isHighSurrogate(output.charAt(OUTPUT_LIMIT - 1))
+                ? OUTPUT_LIMIT - 1 : OUTPUT_LIMIT);
+    }
+
+    /**
+     * @return the report as a single line JSON object
+     */
+    public String toJson() {
+        final StringBuilder sb = new StringBuilder(192 + output.length());
+        sb.append("{\"time\":").append(timeMillis);
+        sb.append(",\"device\":");
+        appendString(sb, device);
+        sb.append(",\"sdk\":").append(sdk);
+        sb.append(",\"operation\":");
+        appendString(sb, operation);
+        sb.append(",\"fromUser\":").append(fromUser);
+        sb.append(",\"exitCode\":").append(exitCode);
+        sb.append(",\"attempts\":").append(attempts);
+        sb.append(",\"durationMs\":").append(durationMillis);
+        sb.append(",\"uptimeMs\":").append(uptimeMillis);
+        sb.append(",\"bytes\":").append(bytes);
+        sb.append(",\"output\":");
+        appendString(sb, output);
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Appends the value as a JSON string. Control characters, line breaks included, are
+     * escaped, so the result is a single line.
+     */
+    static void appendString(final StringBuilder sb, final String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+
+                case '\n':
+                    sb.append("\\n");
+                    break;
+
+                case '\r':
+                    sb.append("\\r");
+                    break;
+
+                case '\t':
+                    sb.append("\\t");
+                    break;
+
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk queue of telemetry records waiting to be sent.
+ * <p>
+ * Records are lines appended to segment files named by the time the segment was started, so
+ * an append is a single write and nothing is read back. A segment is closed once it reaches
+ * the segment size. A new queue over the same directory keeps appending to the newest
+ * segment, so a process that lives for one record does not start a segment per record. When
+ * the segments take more than the limit, the oldest ones are deleted, so a collector that is
+ * down for long loses the oldest records rather than the newest.
+ * <p>
+ * {@link #flush(Sender, int)} closes the open segment and sends the segments oldest first in
+ * batches of whole segments. A batch is deleted once the sender took it. A line torn by the
+ * death of the process is dropped. Not thread-safe, meant for a single worker thread.
+ */
+public final class TelemetryQueue {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_SUFFIX = ".ndjson";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mSegmentBytes;
+
+    /**
+     * Segments oldest first, the last one is open unless {@link #mOpen} is false
+     */
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    private boolean mLoaded;
+    private boolean mOpen;
+
+    private long mEvictedBytes;
+
+    /**
+     * Receives batches of records
+     */
+    public interface Sender {
+
+        /**
+         * @param batch  records, one per line
+         * @param length bytes of the batch
+         * @return true if the batch was taken, false if it was rejected for good and is to be
+         * dropped
+         * @throws IOException if the batch is to be sent again later
+         */
+        boolean send(byte[] batch, int length) throws IOException;
+    }
+
+    /**
+     * @param directory    where the segments are kept, created on first append
+     * @param maxBytes     limit of the size of all segments
+     * @param segmentBytes size at which a segment is closed, well below the limit
+     */
+    public TelemetryQueue(final File directory, final long maxBytes, final long segmentBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mSegmentBytes = segmentBytes;
+    }
+
+    /**
+     * Appends a record, evicting the oldest segments if the queue outgrows the limit
+     *
+     * @param record single line of text
+     */
+    public void append(final String record) throws IOException {
+        if (record.indexOf('\n') != -1) {
+            throw new IllegalArgumentException("Record is not a single line: " + record);
+        }
+        load();
+        final byte[] bytes = (record + '\n').getBytes(UTF_8);
+        Segment segment = mOpen && !mSegments.isEmpty()
+                ? mSegments.get(mSegments.size() - 1) : null;
+        if (segment == null || segment.bytes >= mSegmentBytes) {
+            segment = newSegment();
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(segment.file, true);
+            out.write(bytes);
+        } finally {
+            if (out != null) { try { out.close(); } catch (Exception ignored) {} }
+        }
+        segment.bytes += bytes.length;
+        evict();
+    }
+
+    /**
+     * @return bytes of the queued records
+     */
+    public long getPendingBytes() {
+        load();
+        long bytes = 0;
+        for (final Segment segment : mSegments) {
+            bytes += segment.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes deleted to stay within the limit since the queue was created
+     */
+    public long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+
+    /**
+     * @param now       current time in milliseconds
+     * @param minBytes  pending bytes that are due right away
+     * @param maxAge    age of the oldest record at which it is due, in milliseconds
+     * @return milliseconds till the queue is due for a flush, 0 if it is due now, -1 if it is
+     * empty
+     */
+    public long getFlushDelay(final long now, final long minBytes, final long maxAge) {
+        load();
+        if (mSegments.isEmpty()) {
+            return -1;
+        }
+        if (getPendingBytes() >= minBytes) {
+            return 0;
+        }
+        return Math.max(0, mSegments.get(0).startedMillis + maxAge - now);
+    }
+
+    /**
+     * Sends the queued records, oldest first, and deletes what was sent. Records appended
+     * meanwhile, i.e. by a sender that appends, go to a new segment and stay queued.
+     *
+     * @param batchBytes size after which a batch is sent, a batch has at least one segment
+     * @return number of records taken by the sender
+     * @throws IOException if sending failed, batches sent before it are deleted
+     */
+    public int flush(final Sender sender, final int batchBytes) throws IOException {
+        load();
+        mOpen = false;
+        final List<Segment> pending = new ArrayList<>(mSegments);
+        final ByteArrayOutputStream batch = new ByteArrayOutputStream(
+                (int) Math.min(batchBytes, getPendingBytes()) + 1);
+        final List<Segment> batched = new ArrayList<>();
+        int sent = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            final Segment segment = pending.get(i);
+            readLines(segment.file, batch);
+            batched.add(segment);
+            if (batch.size() >= batchBytes || i == pending.size() - 1) {
+                if (batch.size() != 0) {
+                    final byte[] bytes = batch.toByteArray();
+                    if (sender.send(bytes, bytes.length)) {
+                        sent += countLines(bytes);
+                    }
+                }
+                for (final Segment done : batched) {
+                    done.file.delete();
+                    mSegments.remove(done);
+                }
+                batch.reset();
+                batched.clear();
+            }
+        }
+        return sent;
+    }
+
+    private Segment newSegment() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        long started = System.currentTimeMillis();
+        if (!mSegments.isEmpty()) {
+            // Names must be unique and ordered even if the clock went back
+            started = Math.max(started, mSegments.get(mSegments.size() - 1).startedMillis + 1);
+        }
+        final Segment segment = new Segment(
+                new File(mDirectory, started + SEGMENT_SUFFIX), started, 0);
+        mSegments.add(segment);
+        mOpen = true;
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments while the queue is over the limit, the open one included
+     */
+    private void evict() {
+        long bytes = getPendingBytes();
+        while (bytes > mMaxBytes && !mSegments.isEmpty()) {
+            final Segment oldest = mSegments.remove(0);
+            oldest.file.delete();
+            bytes -= oldest.bytes;
+            mEvictedBytes += oldest.bytes;
+        }
+    }
+
+    /**
+     * Lists the segments and reopens the newest one unless it is full or ends with a torn
+     * line, which the next record would be appended to
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                mSegments.add(new Segment(file, Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length())),
+                        file.length()));
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        Collections.sort(mSegments, new Comparator<Segment>() {
+
+            @Override
+            public int compare(final Segment lhs, final Segment rhs) {
+                return lhs.startedMillis < rhs.startedMillis ? -1
+                        : (lhs.startedMillis == rhs.startedMillis ? 0 : 1);
+            }
+        });
+        if (!mSegments.isEmpty()) {
+            final Segment newest = mSegments.get(mSegments.size() - 1);
+            mOpen = newest.bytes < mSegmentBytes && endsWithLine(newest.file);
+        }
+    }
+
+    /**
+     * @return true if the file is empty or its last byte is a line break
+     */
+    private static boolean endsWithLine(final File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final long length = in.length();
+            if (length == 0) {
+                return true;
+            }
+            in.seek(length - 1);
+            return in.read() == '\n';
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+    }
+
+    /**
+     * Appends the complete lines of the file. A missing file has no lines.
+     */
+    private static void readLines(final File file, final ByteArrayOutputStream out)
+            throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        final byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = null;
+        int length = 0;
+        try {
+            in = new FileInputStream(file);
+            int read;
+            while (length < bytes.length
+                    && (read = in.read(bytes, length, bytes.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            if (in != null) { try { in.close(); } catch (Exception ignored) {} }
+        }
+        while (length > 0 && bytes[length - 1] != '\n') {
+            length--;
+        }
+        out.write(bytes, 0, length);
+    }
+
+    private static int countLines(final byte[] bytes) {
+        int lines = 0;
+        for (final byte b : bytes) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static final class Segment {
+
+        final File file;
+        final long startedMillis;
+        long bytes;
+
+        Segment(final File file, final long startedMillis, final long bytes) {
+            this.file = file;
+            this.startedMillis = startedMillis;
+            this.bytes = bytes;
+        }
+    }
+}
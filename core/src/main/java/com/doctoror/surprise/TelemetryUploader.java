@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends batches of {@link TelemetryQueue} to the collector as a gzipped POST of
+ * newline-delimited JSON.
+ * <p>
+ * A 2xx response takes the batch. Other 4xx responses than 408 and 429 reject it for good,
+ * since sending the same batch again would fail the same way. Anything else, including
+ * network errors, keeps it for later.
+ */
+public final class TelemetryUploader implements TelemetryQueue.Sender {
+
+    public static final String CONTENT_TYPE = "application/x-ndjson";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final URL mEndpoint;
+    private final int mTimeoutMillis;
+
+    private int mLastResponseCode;
+
+    /**
+     * @param endpoint      http or https URL of the collector
+     * @param timeoutMillis limit of connecting and of reading the response, each
+     */
+    public TelemetryUploader(final URL endpoint, final int timeoutMillis) {
+        mEndpoint = endpoint;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public boolean send(final byte[] batch, final int length) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        final GZIPOutputStream gzip = new GZIPOutputStream(compressed, BUFFER_SIZE);
+        gzip.write(batch, 0, length);
+        gzip.close();
+
+        final HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        try {
+            connection.setConnectTimeout(mTimeoutMillis);
+            connection.setReadTimeout(mTimeoutMillis);
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", CONTENT_TYPE);
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(compressed.size());
+            final OutputStream out = connection.getOutputStream();
+            try {
+                compressed.writeTo(out);
+            } finally {
+                try { out.close(); } catch (Exception ignored) {}
+            }
+
+            final int code = connection.getResponseCode();
+            mLastResponseCode = code;
+            drain(code < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (code >= 200 && code < 300) {
+                return true;
+            }
+            if (code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                    && code != 429) {
+                return false;
+            }
+            throw new IOException("HTTP " + code + " from " + mEndpoint);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return HTTP status of the last response, 0 if none was received
+     */
+    public int getLastResponseCode() {
+        return mLastResponseCode;
+    }
+
+    /**
+     * Reads the response to the end, so that the connection can be reused
+     */
+    private static void drain(final InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Discarded
+            }
+        } catch (IOException ignored) {
+        } finally {
+            try { in.close(); } catch (Exception ignored) {}
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of toast texts that merges bursts into a single summary.
+ * <p>
+ * Texts offered within the merge window of the first pending one are shown together, repeated
+ * texts once with a count. A summary is never due before the previous one was displayed for
+ * its full duration. The queue does not show anything itself and takes the time as an
+ * argument, so the owner decides how to wait.
+ * <p>
+ * Usage:
+ * <pre>
+ * final long due = queue.offer(text, false, System.nanoTime());
+ * // after due
+ * final ToastQueue.Summary summary = queue.poll(System.nanoTime());
+ * </pre>
+ */
+public final class ToastQueue {
+
+    /**
+     * Returned by {@link #getDueTime()} when nothing is pending
+     */
+    public static final long NOT_DUE = -1;
+
+    private final long mWindowNanos;
+    private final long mShortNanos;
+    private final long mLongNanos;
+    private final int mMaxLines;
+
+    /**
+     * Pending texts in arrival order with their counts
+     */
+    private final Map<String, Integer> mPending = new LinkedHashMap<>();
+
+    private boolean mPendingLong;
+    private long mFirstPendingTime;
+
+    private boolean mShown;
+    private long mDisplayedUntil;
+
+    private int mOffered;
+    private int mSummaries;
+
+    /**
+     * @param window        time after the first pending text during which more texts are
+     *                      merged, in milliseconds
+     * @param shortDuration display time of a short summary, in milliseconds
+     * @param longDuration  display time of a long summary, in milliseconds
+     * @param maxLines      maximum number of distinct texts in a summary, the rest are counted
+     */
+    public ToastQueue(final long window,
+                      final long shortDuration,
+                      final long longDuration,
+                      final int maxLines) {
+        if (maxLines < 1) {
+            throw new IllegalArgumentException("maxLines must be positive");
+        }
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(window);
+        mShortNanos = TimeUnit.MILLISECONDS.toNanos(shortDuration);
+        mLongNanos = TimeUnit.MILLISECONDS.toNanos(longDuration);
+        mMaxLines = maxLines;
+    }
+
+    /**
+     * Adds a text
+     *
+     * @param longDuration true if the text should be displayed for the long duration
+     * @param now          current time, in {@link System#nanoTime()} base
+     * @return the time from which {@link #poll(long)} returns the summary
+     */
+    public synchronized long offer(final String text,
+                                   final boolean longDuration,
+                                   final long now) {
+        if (mPending.isEmpty()) {
+            mFirstPendingTime = now;
+        }
+        final Integer count = mPending.get(text);
+        mPending.put(text, count == null ? 1 : count + 1);
+        mPendingLong |= longDuration;
+        mOffered++;
+        return getDueTime();
+    }
+
+    /**
+     * @return the time from which {@link #poll(long)} returns the summary, or {@link #NOT_DUE}
+     * if nothing is pending
+     */
+    public synchronized long getDueTime() {
+        if (mPending.isEmpty()) {
+            return NOT_DUE;
+        }
+        final long windowEnd = mFirstPendingTime + mWindowNanos;
+        return mShown && mDisplayedUntil - windowEnd > 0 ? mDisplayedUntil : windowEnd;
+    }
+
+    /**
+     * Takes the pending texts as a summary, which the caller must show at once
+     *
+     * @param now current time, in {@link System#nanoTime()} base
+     * @return the summary or null if nothing is pending or it is not due yet
+     */
+    public synchronized Summary poll(final long now) {
+        final long due = getDueTime();
+        if (due == NOT_DUE || now - due < 0) {
+            return null;
+        }
+
+        int texts = 0;
+        int total = 0;
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, Integer> entry : mPending.entrySet()) {
+            final int count = entry.getValue();
+            total += count;
+            if (texts < mMaxLines) {
+                if (texts != 0) {
+                    sb.append('\n');
+                }
+                sb.append(entry.getKey());
+                if (count > 1) {
+                    sb.append(" (x").append(count).append(')');
+                }
+            }
+            texts++;
+        }
+        if (texts > mMaxLines) {
+            sb.append("\n+").append(texts - mMaxLines).append(" more");
+        }
+
+        // Several texts take longer to read
+        final boolean longDuration = mPendingLong || texts > 1;
+        mPending.clear();
+        mPendingLong = false;
+        mShown = true;
+        mDisplayedUntil = now + (longDuration ? mLongNanos : mShortNanos);
+        mSummaries++;
+        return new Summary(sb.toString(), total, longDuration);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "offered=" + mOffered
+                + ", summaries=" + mSummaries
+                + ", pending=" + mPending.size();
+    }
+
+    /**
+     * Texts merged for showing at once
+     */
+    public static final class Summary {
+
+        public final String text;
+
+        /**
+         * Number of texts merged, repeats included
+         */
+        public final int count;
+
+        public final boolean longDuration;
+
+        Summary(final String text, final int count, final boolean longDuration) {
+            this.text = text;
+            this.count = count;
+            this.longDuration = longDuration;
+        }
+
+        @Override
+        public String toString() {
+            return "\"" + text + "\" (" + count + ", " + (longDuration ? "long" : "short") + ')';
+        }
+    }
+}
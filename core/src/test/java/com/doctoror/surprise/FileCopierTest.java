@@ -0,0 +1,307 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FileCopier} copies and the root helper output the service parses by line order. The
+ * helper is run in a separate VM, since it exits.
+ */
+public final class FileCopierTest {
+
+    private static final int SIZE = 100000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSource;
+    private byte[] mContent;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = randomBytes(SIZE, 1);
+        mSource = file("source", mContent);
+    }
+
+    @Test
+    public void copyWithModeReplacesDestinationByRename() throws IOException {
+        final File destination = file("destination", randomBytes(SIZE * 2, 2));
+        final Object before = fileKey(destination);
+
+        final FileCopier.Result result = FileCopier.copy(mSource, destination, 0750);
+
+        assertEquals(SIZE, result.bytes);
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertEquals("rwxr-x---", mode(destination));
+        assertNotEquals(before, fileKey(destination));
+        assertFalse(FileCopier.tempFile(destination).exists());
+    }
+
+    @Test
+    public void copyWithModeKeepWritesInPlace() throws IOException {
+        final File destination = file("destination", randomBytes(SIZE * 2, 2));
+        Files.setPosixFilePermissions(destination.toPath(),
+                PosixFilePermissions.fromString("rw-r-----"));
+        final Object before = fileKey(destination);
+
+        final FileCopier.Result result = FileCopier.copy(mSource, destination,
+                FileCopier.MODE_KEEP);
+
+        assertEquals(SIZE, result.bytes);
+        assertEquals(0, result.chmodNanos);
+        // Truncated to the source
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertEquals("rw-r-----", mode(destination));
+        assertEquals(before, fileKey(destination));
+    }
+
+    @Test
+    public void copyCreatesMissingDestination() throws IOException {
+        final File destination = new File(mFolder.getRoot(), "new");
+        FileCopier.copy(mSource, destination, 0644);
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertEquals("rw-r--r--", mode(destination));
+    }
+
+    @Test
+    public void syncWritesChangedBlocksInPlace() throws IOException {
+        final byte[] old = mContent.clone();
+        old[SIZE / 2] ^= 1;
+        final File destination = file("destination", old);
+        final Object before = fileKey(destination);
+
+        final FileCopier.Result result = FileCopier.sync(mSource, destination, 0700);
+
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertEquals("rwx------", mode(destination));
+        assertEquals(before, fileKey(destination));
+        assertEquals(1, result.blocksWritten);
+        assertTrue(result.blocksExamined > 1);
+    }
+
+    @Test
+    public void helperCopiesEveryTripleAndReportsInOrder() throws Exception {
+        final File first = file("first", randomBytes(10, 3));
+        final File third = file("third", randomBytes(10, 4));
+        final File missing = new File(mFolder.getRoot(), "missing");
+        final byte[] small = randomBytes(1000, 5);
+        final File smallSource = file("small", small);
+
+        final Helper helper = runHelper(
+                mSource.getPath(), first.getPath(), "-",
+                missing.getPath(), new File(mFolder.getRoot(), "second").getPath(), "644",
+                smallSource.getPath(), third.getPath(), "755");
+
+        assertEquals(1, helper.exitCode);
+        final String[] lines = helper.output.split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("FileCopier: " + SIZE + ' '));
+        assertTrue(lines[1], lines[1].startsWith("FileCopier failed: "));
+        assertTrue(lines[2], lines[2].startsWith("FileCopier: " + small.length + ' '));
+
+        final FileCopier.Result[] results = FileCopier.parseResults(helper.output, 3);
+        assertEquals(SIZE, results[0].bytes);
+        assertNull(results[1]);
+        assertEquals(small.length, results[2].bytes);
+
+        // The failure in the middle does not stop the third copy
+        assertArrayEquals(mContent, Files.readAllBytes(first.toPath()));
+        assertArrayEquals(small, Files.readAllBytes(third.toPath()));
+        assertEquals("rwxr-xr-x", mode(third));
+    }
+
+    @Test
+    public void helperReplacesGivenDestinationsWithDelta() throws Exception {
+        final byte[] old = mContent.clone();
+        old[0] ^= 1;
+        final File synced = file("synced", old);
+        final File replaced = file("replaced", old);
+        final Object syncedKey = fileKey(synced);
+        final Object replacedKey = fileKey(replaced);
+
+        final Helper helper = runHelper("--delta", "--replace", replaced.getPath(),
+                mSource.getPath(), synced.getPath(), "-",
+                mSource.getPath(), replaced.getPath(), "700");
+
+        assertEquals(helper.output, 0, helper.exitCode);
+        final FileCopier.Result[] results = FileCopier.parseResults(helper.output, 2);
+        assertEquals(1, results[0].blocksWritten);
+        // Replaced by a copy, which examines no blocks
+        assertEquals(0, results[1].blocksExamined);
+        assertArrayEquals(mContent, Files.readAllBytes(synced.toPath()));
+        assertArrayEquals(mContent, Files.readAllBytes(replaced.toPath()));
+        assertEquals(syncedKey, fileKey(synced));
+        assertNotEquals(replacedKey, fileKey(replaced));
+    }
+
+    @Test
+    public void rootCommandListsReplacedDestinationsOnlyWithDelta() {
+        final File replaced = new File("/system/xbin/surprise");
+        final List<FileCopier.Task> tasks = Arrays.asList(
+                new FileCopier.Task(new File("/system/xbin/su"), replaced, 06755),
+                new FileCopier.Task(new File("/a"), new File("/b"), FileCopier.MODE_KEEP));
+
+        final String delta = FileCopier.rootCommand("/app.apk", tasks, true,
+                Arrays.asList(replaced), "/system", null);
+        assertTrue(delta, delta.endsWith(" --delta --replace '/system/xbin/surprise'"
+                + " --remount-rw '/system' '/system/xbin/su' '/system/xbin/surprise' 6755"
+                + " '/a' '/b' -"));
+
+        final String copy = FileCopier.rootCommand("/app.apk", tasks, false,
+                Arrays.asList(replaced), null, null);
+        assertFalse(copy, copy.contains("--replace"));
+    }
+
+    @Test
+    public void helperTakesQuotedPathsLiterally() throws Exception {
+        final File destination = new File(mFolder.getRoot(), "it's $(touch x) `touch y` z");
+        final String rootCommand = FileCopier.rootCommand(System.getProperty("java.class.path"),
+                Arrays.asList(new FileCopier.Task(mSource, destination, 0644)), false,
+                Arrays.<File>asList(), null, null);
+        // java, passed as $0, stands in for app_process and its directory argument
+        final List<String> command = Arrays.asList("sh", "-c",
+                rootCommand.replace("app_process /system/bin", "\"$0\""),
+                new File(System.getProperty("java.home"), "bin/java").getPath());
+        final Process process = new ProcessBuilder(command).directory(mFolder.getRoot())
+                .redirectErrorStream(true).start();
+        final String output = new String(readAll(process.getInputStream()), "UTF-8");
+        assertEquals(output, 0, process.waitFor());
+        assertArrayEquals(mContent, Files.readAllBytes(destination.toPath()));
+        assertFalse(new File(mFolder.getRoot(), "x").exists());
+        assertFalse(new File(mFolder.getRoot(), "y").exists());
+    }
+
+    @Test
+    public void parseResultsSkipsOtherLinesAndKeepsFailedSlots() {
+        final String output = "FileCopier rw: 1500\n"
+                + "FileCopier: 100 2000 300\n"
+                + "FileCopier failed: java.io.FileNotFoundException: /b\n"
+                + "FileCopier: 200 4000 0 25 1\n"
+                + "FileCopier ro: 700\n"
+                + "FileCopier window: 9000\n";
+
+        final FileCopier.Result[] results = FileCopier.parseResults(output, 3);
+
+        assertNotNull(results[0]);
+        assertEquals(100, results[0].bytes);
+        assertEquals(2000, results[0].nanos);
+        assertEquals(300, results[0].chmodNanos);
+        assertNull(results[1]);
+        assertEquals(200, results[2].bytes);
+        assertEquals(25, results[2].blocksExamined);
+        assertEquals(1, results[2].blocksWritten);
+        assertEquals(1500, FileCopier.parseRemountNanos(output, FileCopier.REMOUNT_RW));
+        assertEquals(700, FileCopier.parseRemountNanos(output, FileCopier.REMOUNT_RO));
+        assertEquals(9000, FileCopier.parseRemountNanos(output, FileCopier.WRITABLE_WINDOW));
+    }
+
+    @Test
+    public void parseResultsLeavesMissingResultsNull() {
+        final FileCopier.Result[] results = FileCopier.parseResults(
+                "FileCopier: 100 2000 300\n", 3);
+        assertNotNull(results[0]);
+        assertNull(results[1]);
+        assertNull(results[2]);
+        assertNull(FileCopier.parseResults(null, 1)[0]);
+        assertNull(FileCopier.parseResults("FileCopier: garbage\n", 1)[0]);
+    }
+
+    private File file(final String name, final byte[] content) throws IOException {
+        final File file = new File(mFolder.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] randomBytes(final int size, final long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String mode(final File file) throws IOException {
+        final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file.toPath());
+        return PosixFilePermissions.toString(permissions);
+    }
+
+    /**
+     * @return identity of the inode, which a rename replaces and an in-place write keeps
+     */
+    private static Object fileKey(final File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    }
+
+    private static Helper runHelper(final String... args) throws Exception {
+        final List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FileCopier.class.getName());
+        command.addAll(Arrays.asList(args));
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            final String output = new String(readAll(process.getInputStream()), "UTF-8");
+            return new Helper(process.waitFor(), output);
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class Helper {
+
+        final int exitCode;
+        final String output;
+
+        Helper(final int exitCode, final String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Flushes {@link TelemetryQueue} through {@link TelemetryUploader} to a collector stand-in on
+ * the loopback interface
+ */
+public final class TelemetryUploaderTest {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Closes a segment after its second record, so that records share segments
+     */
+    private static final long SEGMENT_BYTES = 64;
+
+    private static final int BATCH_BYTES = (int) SEGMENT_BYTES * 2 + 1;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Collector mCollector = new Collector();
+
+    private HttpServer mServer;
+    private TelemetryUploader mUploader;
+    private File mDirectory;
+    private TelemetryQueue mQueue;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/collect", mCollector);
+        mServer.start();
+        mUploader = new TelemetryUploader(new URL("http://127.0.0.1:"
+                + mServer.getAddress().getPort() + "/collect"), TIMEOUT_MILLIS);
+        mDirectory = new File(mFolder.getRoot(), "telemetry");
+        mQueue = new TelemetryQueue(mDirectory, 1024 * 1024, SEGMENT_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void sendsGzippedNdjsonInBatches() throws IOException {
+        final List<String> records = append(0, 12);
+        final int segments = mDirectory.list().length;
+        assertTrue("Expected several segments, got " + segments, segments > 2);
+
+        // A batch is sent as soon as it reaches the size, so it takes two or three segments
+        assertEquals(records.size(), mQueue.flush(mUploader, BATCH_BYTES));
+
+        assertTrue("Expected several batches, got " + mCollector.bodies.size(),
+                mCollector.bodies.size() > 1);
+        assertTrue(mCollector.bodies.size() < segments);
+        for (final Request request : mCollector.requests) {
+            assertEquals("POST", request.method);
+            assertEquals("gzip", request.contentEncoding);
+            assertEquals(TelemetryUploader.CONTENT_TYPE, request.contentType);
+        }
+        assertEquals(records, mCollector.records());
+        assertEquals(0, mQueue.getPendingBytes());
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void keepsBatchAfterServerError() throws IOException {
+        final List<String> records = append(0, 3);
+        final long pending = mQueue.getPendingBytes();
+        mCollector.codes.add(503);
+        try {
+            mQueue.flush(mUploader, Integer.MAX_VALUE);
+            fail("Flush succeeded on 503");
+        } catch (IOException expected) {
+            // Retried later
+        }
+        assertEquals(503, mUploader.getLastResponseCode());
+        assertEquals(pending, mQueue.getPendingBytes());
+
+        // The retry sends the same records once more
+        assertEquals(records.size(), mQueue.flush(mUploader, Integer.MAX_VALUE));
+        assertEquals(2, mCollector.bodies.size());
+        assertEquals(mCollector.bodies.get(0), mCollector.bodies.get(1));
+        assertEquals(0, mQueue.getPendingBytes());
+    }
+
+    @Test
+    public void deletesOnlyAcknowledgedSegments() throws IOException {
+        append(0, 12);
+        final List<String> segments = sortedSegments();
+        mCollector.codes.addAll(Arrays.asList(200, 429));
+        try {
+            mQueue.flush(mUploader, BATCH_BYTES);
+            fail("Flush succeeded on 429");
+        } catch (IOException expected) {
+            // Retried later
+        }
+        final List<String> left = sortedSegments();
+        assertTrue(left.size() < segments.size());
+        assertTrue(!left.isEmpty());
+        // The acknowledged batch was the oldest segments
+        assertEquals(segments.subList(segments.size() - left.size(), segments.size()), left);
+        final List<String> acknowledged = records(mCollector.bodies.get(0));
+
+        // A queue over the same directory, as after a restart, sends the rest
+        final TelemetryQueue restarted = new TelemetryQueue(mDirectory, 1024 * 1024,
+                SEGMENT_BYTES);
+        final int sent = restarted.flush(mUploader, Integer.MAX_VALUE);
+        assertEquals(12, acknowledged.size() + sent);
+        final List<String> received = new ArrayList<>(acknowledged);
+        received.addAll(records(mCollector.bodies.get(mCollector.bodies.size() - 1)));
+        assertEquals(expectedRecords(0, 12), received);
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void dropsRejectedBatch() throws IOException {
+        append(0, 3);
+        mCollector.codes.add(400);
+        assertEquals(0, mQueue.flush(mUploader, Integer.MAX_VALUE));
+        assertEquals(400, mUploader.getLastResponseCode());
+        assertEquals(0, mQueue.getPendingBytes());
+    }
+
+    @Test
+    public void appendsAfterRestartToNewestSegment() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            new TelemetryQueue(mDirectory, 1024 * 1024, 1024).append(record(i));
+        }
+        assertEquals(1, mDirectory.list().length);
+        assertEquals(2, new TelemetryQueue(mDirectory, 1024 * 1024, 1024)
+                .flush(mUploader, Integer.MAX_VALUE));
+    }
+
+    private List<String> append(final int first, final int count) throws IOException {
+        for (int i = first; i < first + count; i++) {
+            mQueue.append(record(i));
+        }
+        return expectedRecords(first, count);
+    }
+
+    private static List<String> expectedRecords(final int first, final int count) {
+        final List<String> records = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+
+    private static String record(final int i) {
+        return "{\"run\":" + i + ",\"output\":\"padding\"}";
+    }
+
+    private List<String> sortedSegments() {
+        final List<String> names = new ArrayList<>(Arrays.asList(mDirectory.list()));
+        Collections.sort(names);
+        return names;
+    }
+
+    private static List<String> records(final String body) {
+        final List<String> records = new ArrayList<>();
+        for (final String line : body.split("\n")) {
+            if (!line.isEmpty()) {
+                records.add(line);
+            }
+        }
+        return records;
+    }
+
+    private static final class Request {
+
+        final String method;
+        final String contentType;
+        final String contentEncoding;
+
+        Request(final String method, final String contentType, final String contentEncoding) {
+            this.method = method;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+        }
+    }
+
+    /**
+     * Collector stand-in. Answers with the queued codes, then with 200.
+     */
+    private static final class Collector implements HttpHandler {
+
+        final Queue<Integer> codes = new LinkedList<>();
+        final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            requests.add(new Request(exchange.getRequestMethod(),
+                    exchange.getRequestHeaders().getFirst("Content-Type"),
+                    exchange.getRequestHeaders().getFirst("Content-Encoding")));
+            bodies.add(new String(readAll(new GZIPInputStream(exchange.getRequestBody())),
+                    "UTF-8"));
+            final Integer code = codes.poll();
+            exchange.sendResponseHeaders(code != null ? code : 200, -1);
+            exchange.close();
+        }
+
+        List<String> records() {
+            final List<String> records = new ArrayList<>();
+            for (final String body : bodies) {
+                records.addAll(TelemetryUploaderTest.records(body));
+            }
+            return records;
+        }
+
+        private static byte[] readAll(final InputStream in) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
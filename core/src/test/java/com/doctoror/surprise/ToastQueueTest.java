@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Yaroslav Mytkalyk aka Doctoror
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.doctoror.surprise;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ToastQueue} with the policy of ToastMessageHandler, on a fake clock
+ */
+public final class ToastQueueTest {
+
+    private static final long WINDOW_MILLIS = 300;
+    private static final long SHORT_MILLIS = 2000;
+    private static final long LONG_MILLIS = 3500;
+    private static final int MAX_LINES = 4;
+
+    /**
+     * Arbitrary clock origin, nanoTime may be negative
+     */
+    private static final long T0 = -5000000000L;
+
+    private final ToastQueue mQueue = new ToastQueue(WINDOW_MILLIS, SHORT_MILLIS, LONG_MILLIS,
+            MAX_LINES);
+
+    @Test
+    public void mergesTextsWithinWindow() {
+        final long due = mQueue.offer("a", false, T0);
+        assertEquals(T0 + ms(WINDOW_MILLIS), due);
+        // The window is counted from the first text, later ones do not extend it
+        assertEquals(due, mQueue.offer("b", false, T0 + ms(WINDOW_MILLIS - 1)));
+        assertNull(mQueue.poll(due - 1));
+
+        final ToastQueue.Summary summary = mQueue.poll(due);
+        assertEquals("a\nb", summary.text);
+        assertEquals(2, summary.count);
+        // Several texts take longer to read
+        assertTrue(summary.longDuration);
+        assertEquals(ToastQueue.NOT_DUE, mQueue.getDueTime());
+    }
+
+    @Test
+    public void textAfterWindowGoesToNextSummary() {
+        mQueue.offer("a", false, T0);
+        assertEquals("a", mQueue.poll(T0 + ms(WINDOW_MILLIS)).text);
+        mQueue.offer("b", false, T0 + ms(WINDOW_MILLIS + 1));
+        assertNull(mQueue.poll(T0 + ms(WINDOW_MILLIS + 1)));
+    }
+
+    @Test
+    public void countsRepeats() {
+        mQueue.offer("failed", false, T0);
+        mQueue.offer("done", false, T0 + ms(10));
+        mQueue.offer("failed", false, T0 + ms(20));
+        mQueue.offer("failed", false, T0 + ms(30));
+
+        final ToastQueue.Summary summary = mQueue.poll(T0 + ms(WINDOW_MILLIS));
+        assertEquals("failed (x3)\ndone", summary.text);
+        assertEquals(4, summary.count);
+    }
+
+    @Test
+    public void singleTextKeepsItsDuration() {
+        mQueue.offer("a", false, T0);
+        mQueue.offer("a", false, T0);
+        assertFalse(mQueue.poll(T0 + ms(WINDOW_MILLIS)).longDuration);
+
+        mQueue.offer("b", true, T0 + ms(10000));
+        assertTrue(mQueue.poll(T0 + ms(10000 + WINDOW_MILLIS)).longDuration);
+    }
+
+    @Test
+    public void summarizesTextsBeyondMaxLines() {
+        for (int i = 1; i <= MAX_LINES + 2; i++) {
+            mQueue.offer("text " + i, false, T0);
+        }
+        final ToastQueue.Summary summary = mQueue.poll(T0 + ms(WINDOW_MILLIS));
+        assertEquals("text 1\ntext 2\ntext 3\ntext 4\n+2 more", summary.text);
+        assertEquals(MAX_LINES + 2, summary.count);
+    }
+
+    @Test
+    public void notDueUntilPreviousSummaryDisplayed() {
+        mQueue.offer("a", false, T0);
+        final long shown = T0 + ms(WINDOW_MILLIS);
+        assertFalse(mQueue.poll(shown).longDuration);
+
+        // Its window ends while "a" is still displayed
+        final long due = mQueue.offer("b", false, shown + ms(100));
+        assertEquals(shown + ms(SHORT_MILLIS), due);
+        assertNull(mQueue.poll(shown + ms(SHORT_MILLIS) - 1));
+        assertEquals("b", mQueue.poll(shown + ms(SHORT_MILLIS)).text);
+    }
+
+    @Test
+    public void notDueUntilPreviousLongSummaryDisplayed() {
+        mQueue.offer("a", false, T0);
+        mQueue.offer("b", false, T0);
+        final long shown = T0 + ms(WINDOW_MILLIS);
+        assertTrue(mQueue.poll(shown).longDuration);
+
+        assertEquals(shown + ms(LONG_MILLIS), mQueue.offer("c", false, shown));
+    }
+
+    @Test
+    public void windowEndsAfterPreviousSummaryDisplayed() {
+        mQueue.offer("a", false, T0);
+        final long shown = T0 + ms(WINDOW_MILLIS);
+        mQueue.poll(shown);
+
+        final long offered = shown + ms(SHORT_MILLIS) - ms(100);
+        assertEquals(offered + ms(WINDOW_MILLIS), mQueue.offer("b", false, offered));
+    }
+
+    private static long ms(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}